@@ -2,8 +2,9 @@
 # joiner.sh — Merge GraalVM native-image metadata config files by type
 #
 # Finds all *-config.json files under a search directory (default: target),
-# groups them by filename, and merges each group into a single file using
-# jsont with the appropriate JS merge template.
+# groups them by filename, and merges each group into a single file with one
+# `jsont join` run. serialization-config.json may mix the legacy array form
+# with the object form, so it is still merged with its JS template.
 #
 # Usage:
 #   ./joiner.sh [search_dir] [output_dir]
@@ -24,8 +25,6 @@ OUTPUT_DIR="${2:-target/merged-native-config}"
 JSONT="${JSONT:-target/jsont}"
 
 # ── Templates ────────────────────────────────────────────────────────────────
-MERGE_ARRAYS="${SCRIPT_DIR}/merge-arrays.js"
-MERGE_OBJECTS="${SCRIPT_DIR}/merge-objects.js"
 MERGE_SERIALIZATION="${SCRIPT_DIR}/merge-serialization.js"
 
 # ── Helpers ──────────────────────────────────────────────────────────────────
@@ -36,9 +35,7 @@ check_prereqs() {
     if [ ! -x "$JSONT" ] && [ ! -f "$JSONT" ]; then
         die "jsont not found at '$JSONT'. Build with 'mvn -Pnative install' or set JSONT env var."
     fi
-    for tmpl in "$MERGE_ARRAYS" "$MERGE_OBJECTS" "$MERGE_SERIALIZATION"; do
-        [ -f "$tmpl" ] || die "Template not found: $tmpl"
-    done
+    [ -f "$MERGE_SERIALIZATION" ] || die "Template not found: $MERGE_SERIALIZATION"
     [ -d "$SEARCH_DIR" ] || die "Search directory not found: $SEARCH_DIR"
 }
 
@@ -78,24 +75,6 @@ assemble_json_array() {
     printf '\n]\n'
 }
 
-# Pick the right JS merge template based on config filename
-template_for() {
-    local config_name="$1"
-    case "$config_name" in
-        resource-config.json)
-            echo "$MERGE_OBJECTS"
-            ;;
-        serialization-config.json)
-            echo "$MERGE_SERIALIZATION"
-            ;;
-        # reflect-config.json, jni-config.json, proxy-config.json, and any
-        # other array-based config all use the flat array concatenation template
-        *)
-            echo "$MERGE_ARRAYS"
-            ;;
-    esac
-}
-
 # ── Main ─────────────────────────────────────────────────────────────────────
 
 check_prereqs
@@ -117,20 +96,31 @@ if [ -z "$CONFIG_NAMES" ]; then
     exit 0
 fi
 
-for config_name in $CONFIG_NAMES; do
-    n=$(count_files "$config_name")
-    template="$(template_for "$config_name")"
-    template_base="$(basename "$template")"
-    output_file="$OUTPUT_DIR/$config_name"
-
-    printf "%-30s  %3d file(s)  ← %s\n" "$config_name" "$n" "$template_base"
+# Every array-based config (reflect, jni, proxy, ...) and resource-config.json
+# are deep merged in one process: arrays concatenated with duplicates dropped,
+# objects merged member by member. Empty files are skipped. The files are passed
+# to a single run rather than through xargs, which may split them across runs
+# that would each overwrite the outputs with a merge of only their own files.
+mapfile -d '' CONFIG_FILES < <(
+    find "$SEARCH_DIR" -name '*-config.json' ! -name 'serialization-config.json' -type f -size +0 -print0 | sort -z
+)
+if [ "${#CONFIG_FILES[@]}" -gt 0 ]; then
+    "$JSONT" --dedupe --out-dir="$OUTPUT_DIR" join "${CONFIG_FILES[@]}"
+fi
 
-    assemble_json_array "$config_name" \
-        | "$JSONT" "$template" - "$output_file" 2>/dev/null
+if [ "$(count_files serialization-config.json)" -gt 0 ]; then
+    output_file="$OUTPUT_DIR/serialization-config.json"
+    printf "%-30s  %3d file(s)  ← %s\n" serialization-config.json \
+        "$(count_files serialization-config.json)" "$(basename "$MERGE_SERIALIZATION")"
+    assemble_json_array serialization-config.json \
+        | "$JSONT" "$MERGE_SERIALIZATION" - "$output_file" 2>/dev/null
+fi
 
+for config_name in $CONFIG_NAMES; do
+    output_file="$OUTPUT_DIR/$config_name"
     if [ -f "$output_file" ]; then
         size=$(wc -c < "$output_file")
-        printf "%-30s  wrote %s bytes → %s\n" "" "$size" "$output_file"
+        printf "%-30s  wrote %s bytes → %s\n" "$config_name" "$size" "$output_file"
     else
         echo "  WARNING: output not created for $config_name" >&2
     fi
@@ -0,0 +1,27 @@
+#!/bin/bash
+# native-pgo.sh — build a profile-guided jsont native binary, optionally with templates built in
+#
+# Usage:
+#   ./native-pgo.sh [template.js,...]
+#
+# 1. builds target/jsont-instrumented
+# 2. runs it over ALL_FINES.json, as the agent run in the native profile does, writing target/jsont.iprof
+# 3. builds target/jsont optimised with that profile
+#
+# Needs GraalVM (PGO is not available in Community Edition).
+
+set -euo pipefail
+
+. .env
+TEMPLATES="${1:-}"
+
+mvn -DskipTests -Pnative,pgo-instrument -Dnative.skip=false -Dnative.templates="$TEMPLATES" install
+
+# profile the embedded copy of template.js when it is built in, since that is what the binary will run
+TEMPLATE=src/test/resources/template.js
+case ",$TEMPLATES," in *template.js,*) TEMPLATE=@template.js ;; esac
+
+target/jsont-instrumented -XX:ProfilesDumpFile=target/jsont.iprof \
+    "$TEMPLATE" src/test/resources/ALL_FINES.json target/all_fines_nsw.json
+
+mvn -DskipTests -Pnative,pgo -Dnative.skip=false -Dnative.templates="$TEMPLATES" -Dnative.pgo.profile=target/jsont.iprof install
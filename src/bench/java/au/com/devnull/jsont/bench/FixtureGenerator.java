@@ -0,0 +1,187 @@
+package au.com.devnull.jsont.bench;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonStructure;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonGenerator;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Scales the small test fixtures up to benchmark sized documents.
+ *
+ * <ul>
+ *   <li>{@code fines-<size>.json} – ALL_FINES.json with {@code hits.hits} repeated until the file reaches the size</li>
+ *   <li>{@code orig-<size>.json} / {@code target-<size>.json} – an array of records cycling through the
+ *   {@code operations/} originals, where every tenth record of the target is the modified counterpart</li>
+ * </ul>
+ *
+ * Documents are streamed through a {@link JsonGenerator} so even the 1GB fixtures never sit in memory
+ * while being written. Existing files are reused.
+ *
+ * <pre>
+ * java -cp ... au.com.devnull.jsont.bench.FixtureGenerator [dir] [1MB 100MB 1GB]
+ * </pre>
+ *
+ * @author wozza
+ */
+public class FixtureGenerator {
+
+    public static final String DIR_PROPERTY = "jsont.bench.dir";
+
+    public static final String[] SIZES = { "1MB", "100MB", "1GB" };
+
+    private static final int MODIFIED_EVERY = 10;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of(args.length > 0 ? args[0] : System.getProperty(DIR_PROPERTY, "target/bench"));
+        String[] sizes = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : SIZES;
+        for (String size : sizes) {
+            System.err.println(fines(dir, size) + " " + original(dir, size) + " " + target(dir, size));
+        }
+    }
+
+    public static Path dir() {
+        return Path.of(System.getProperty(DIR_PROPERTY, "target/bench"));
+    }
+
+    /**
+     * Parse a size such as 1MB, 100MB or 1GB into bytes.
+     */
+    public static long bytes(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        long unit = s.endsWith("GB") ? 1L << 30 : s.endsWith("MB") ? 1L << 20 : s.endsWith("KB") ? 1L << 10 : 1;
+        return Long.parseLong(s.replaceAll("[KMGB]", "")) * unit;
+    }
+
+    public static Path fines(Path dir, String size) throws IOException {
+        Path file = dir.resolve("fines-" + size + ".json");
+        if (Files.exists(file)) {
+            return file;
+        }
+        JsonObject fines = readResource("ALL_FINES.json").asJsonObject();
+        JsonArray hits = fines.getJsonObject("hits").getJsonArray("hits");
+        long limit = bytes(size);
+
+        write(file, (generator, written) -> {
+            generator.writeStartObject();
+            for (Map.Entry<String, JsonValue> e : fines.entrySet()) {
+                if (!"hits".equals(e.getKey())) {
+                    generator.write(e.getKey(), e.getValue());
+                }
+            }
+            generator.writeStartObject("hits").writeStartArray("hits");
+            for (int i = 0; written.getAsLong() < limit; i++) {
+                JsonObject hit = hits.getJsonObject(i % hits.size());
+                generator.write(Json.createObjectBuilder(hit).add("_id", "demerit_points:" + i).build());
+            }
+            generator.writeEnd().writeEnd().writeEnd();
+        });
+        return file;
+    }
+
+    public static Path original(Path dir, String size) throws IOException {
+        return records(dir.resolve("orig-" + size + ".json"), bytes(size), false);
+    }
+
+    public static Path target(Path dir, String size) throws IOException {
+        return records(dir.resolve("target-" + size + ".json"), bytes(size), true);
+    }
+
+    private static Path records(Path file, long limit, boolean modified) throws IOException {
+        if (Files.exists(file)) {
+            return file;
+        }
+        JsonStructure[][] pairs = {
+            { readResource("operations/patch/default.json"), readResource("operations/patch/default_1.json") },
+            { readResource("operations/merge/merge_orig.json"), readResource("operations/merge/merge_result.json") },
+        };
+        // the target is written with the same record count as the original so the pair stays aligned
+        long count = countRecords(pairs, limit);
+
+        write(file, (generator, written) -> {
+            generator.writeStartArray();
+            for (long i = 0; i < count; i++) {
+                JsonStructure[] pair = pairs[(int) (i % pairs.length)];
+                JsonObject record = (modified && i % MODIFIED_EVERY == 0 ? pair[1] : pair[0]).asJsonObject();
+                generator.write(Json.createObjectBuilder(record).add("id", i).build());
+            }
+            generator.writeEnd();
+        });
+        return file;
+    }
+
+    private static long countRecords(JsonStructure[][] pairs, long limit) {
+        long perCycle = 0;
+        for (JsonStructure[] pair : pairs) {
+            perCycle += Json.createObjectBuilder(pair[0].asJsonObject()).add("id", 0L).build().toString().length() + 1;
+        }
+        return Math.max(pairs.length, limit / perCycle * pairs.length);
+    }
+
+    public static JsonStructure read(Path file) throws IOException {
+        try (JsonReader reader = Json.createReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+            return reader.read();
+        }
+    }
+
+    static JsonStructure readResource(String path) throws IOException {
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(path)) {
+            if (in == null) {
+                throw new IOException("Resource not found: " + path);
+            }
+            try (JsonReader reader = Json.createReader(in)) {
+                return reader.read();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        void write(JsonGenerator generator, LongSupplier written) throws IOException;
+    }
+
+    private static void write(Path file, Body body) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        long[] written = { 0 };
+        try (
+            Writer counting = new FilterWriter(Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+                @Override
+                public void write(int c) throws IOException {
+                    super.write(c);
+                    written[0]++;
+                }
+
+                @Override
+                public void write(char[] cbuf, int off, int len) throws IOException {
+                    super.write(cbuf, off, len);
+                    written[0] += len;
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    super.write(str, off, len);
+                    written[0] += len;
+                }
+            };
+            JsonGenerator generator = Json.createGenerator(counting)
+        ) {
+            body.write(generator, () -> written[0]);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
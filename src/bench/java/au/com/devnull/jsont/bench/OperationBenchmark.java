@@ -0,0 +1,162 @@
+package au.com.devnull.jsont.bench;
+
+import au.com.devnull.graalson.trax.GraalsonResult;
+import au.com.devnull.graalson.trax.GraalsonSource;
+import au.com.devnull.graalson.trax.GraalsonTransformerFactory;
+import au.com.devnull.graalson.trax.GraalsonTransformerFactory.JsonMode;
+import jakarta.json.Json;
+import jakarta.json.JsonStructure;
+import jakarta.json.JsonValue;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The four structured operations over scaled copies of the {@code operations/} fixtures.
+ *
+ * The operation parameter uses the CLI names. Operands are parsed once per trial and passed in
+ * memory, so only the operation and serialisation are measured:
+ * <ul>
+ *   <li>DIFF and PATCH compare the original with the target</li>
+ *   <li>MERGE applies the RFC 7396 merge patch from original to target</li>
+ *   <li>APPLY applies the RFC 6902 patch from original to target, as PATCH computes it</li>
+ * </ul>
+ *
+ * {@code cold} and {@code warm} go through the TrAX TransformerFactory as in {@link TransformBenchmark};
+ * {@code inProcess} calls {@code JsonT.Operation.apply} directly, as the CLI does. JsonT is in the
+ * unnamed package, so it is reached through a method handle bound once per trial.
+ *
+ * @author wozza
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OperationBenchmark {
+
+    @Param({ "DIFF", "MERGE", "PATCH", "APPLY" })
+    public String operation;
+
+    @Param({ "1MB", "100MB", "1GB" })
+    public String size;
+
+    private JsonMode mode;
+    private JsonStructure operand1, operand2;
+    private Templates templates;
+    private MethodHandle apply;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TransformerException {
+        GraalsonTransformerFactory.useJavaxXmlTransformTransformerFactory();
+        Path dir = FixtureGenerator.dir();
+        JsonStructure original = FixtureGenerator.read(FixtureGenerator.original(dir, size));
+        JsonStructure target = FixtureGenerator.read(FixtureGenerator.target(dir, size));
+
+        switch (operation) {
+            case "DIFF" -> {
+                mode = JsonMode.JSON_DIFF;
+                operand1 = original;
+                operand2 = target;
+            }
+            case "MERGE" -> {
+                mode = JsonMode.JSON_MERGE;
+                operand1 = (JsonStructure) Json.createMergeDiff(original, target).toJsonValue();
+                operand2 = original;
+            }
+            case "PATCH" -> {
+                mode = JsonMode.JSON_PATCH_DIFF;
+                operand1 = original;
+                operand2 = target;
+            }
+            case "APPLY" -> {
+                mode = JsonMode.JSON_PATCH_APPLY;
+                operand1 = patch(original, target);
+                operand2 = original;
+            }
+            default -> throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        templates = newTemplates();
+        apply = operation(operation);
+    }
+
+    @Benchmark
+    public Writer cold() throws TransformerException {
+        return transform(newTemplates());
+    }
+
+    @Benchmark
+    public Writer warm() throws TransformerException {
+        return transform(templates);
+    }
+
+    @Benchmark
+    public Writer inProcess() throws Throwable {
+        Writer out = Writer.nullWriter();
+        Json.createWriter(out).write((JsonValue) apply.invoke(operand1, operand2));
+        return out;
+    }
+
+    private Writer transform(Templates templates) throws TransformerException {
+        Writer out = Writer.nullWriter();
+        templates
+            .newTransformer()
+            .transform(new GraalsonSource(operand2), new GraalsonResult(Json.createWriter(out)));
+        return out;
+    }
+
+    /**
+     * {@code JsonT.Operation.valueOf(name)::apply} taking (operand1, operand2).
+     */
+    private static MethodHandle operation(String name) throws IOException {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> type = Class.forName("JsonT$Operation");
+            Object value = lookup.findStatic(type, "valueOf", MethodType.methodType(type, String.class)).invoke(name);
+            return lookup
+                .findVirtual(type, "apply", MethodType.methodType(JsonValue.class, JsonStructure.class, JsonStructure.class))
+                .bindTo(value);
+        } catch (Throwable e) {
+            throw new IOException("JsonT.Operation." + name + " is not on the classpath", e);
+        }
+    }
+
+    /**
+     * Parsson's createDiff recurses once per array element and overflows the stack on the larger fixtures.
+     */
+    private static JsonStructure patch(JsonStructure original, JsonStructure target) throws IOException {
+        try {
+            return (JsonStructure) operation("PATCH").invoke(original, target);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException("PATCH failed", e);
+        }
+    }
+
+    private Templates newTemplates() throws TransformerException {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setAttribute(GraalsonTransformerFactory.JSON_MODE_ATTRIBUTE, mode);
+        return factory.newTemplates(new GraalsonSource(operand1));
+    }
+}
@@ -0,0 +1,83 @@
+package au.com.devnull.jsont.bench;
+
+import au.com.devnull.graalson.trax.GraalsonResult;
+import au.com.devnull.graalson.trax.GraalsonSource;
+import au.com.devnull.graalson.trax.GraalsonTransformerFactory;
+import au.com.devnull.graalson.trax.GraalsonTransformerFactory.JsonMode;
+import jakarta.json.Json;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON_TRANSFORM with {@code template.js} over a scaled copy of ALL_FINES.json.
+ *
+ * {@code cold} builds a new TransformerFactory and Templates for every invocation, as the CLI does;
+ * {@code warm} reuses Templates compiled once per trial. Both parse the input file and
+ * serialise the result to a null writer, so the difference is the cost of compiling the template.
+ *
+ * @author wozza
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformBenchmark {
+
+    public static final String TEMPLATE = "template.js";
+
+    @Param({ "1MB", "100MB", "1GB" })
+    public String size;
+
+    private Path input;
+    private Templates templates;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TransformerException {
+        GraalsonTransformerFactory.useJavaxXmlTransformTransformerFactory();
+        input = FixtureGenerator.fines(FixtureGenerator.dir(), size);
+        templates = newTemplates();
+    }
+
+    @Benchmark
+    public Writer cold() throws TransformerException {
+        return transform(newTemplates());
+    }
+
+    @Benchmark
+    public Writer warm() throws TransformerException {
+        return transform(templates);
+    }
+
+    private Writer transform(Templates templates) throws TransformerException {
+        Writer out = Writer.nullWriter();
+        templates
+            .newTransformer()
+            .transform(new GraalsonSource(input), new GraalsonResult(Json.createWriter(out)));
+        return out;
+    }
+
+    private static Templates newTemplates() throws TransformerException {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setAttribute(GraalsonTransformerFactory.JSON_MODE_ATTRIBUTE, JsonMode.JSON_TRANSFORM);
+        return factory.newTemplates(new GraalsonSource(TEMPLATE));
+    }
+}
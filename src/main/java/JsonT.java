@@ -11,37 +11,151 @@ import au.com.devnull.graalson.trax.GraalsonResult;
 import au.com.devnull.graalson.trax.GraalsonSource;
 import au.com.devnull.graalson.trax.GraalsonTransformerFactory;
 import au.com.devnull.graalson.trax.GraalsonTransformerFactory.JsonMode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonException;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
 import jakarta.json.JsonReader;
+import jakarta.json.JsonReaderFactory;
+import jakarta.json.JsonString;
+import jakarta.json.JsonStructure;
+import jakarta.json.JsonValue;
 import jakarta.json.JsonWriter;
 import jakarta.json.JsonWriterFactory;
-import java.io.FileWriter;
+import jakarta.json.spi.JsonProvider;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 import org.commonmark.node.*;
 import org.commonmark.parser.Parser;
 import org.fusesource.jansi.Ansi;
 import org.fusesource.jansi.AnsiConsole;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyExecutable;
+import org.graalvm.polyglot.proxy.ProxyObject;
 
 /**
  *
  * @author wozza
  */
+// Stats.Phase and FileLock are held by try-with-resources for their scope and never referenced in it
+@SuppressWarnings("try")
 public class JsonT {
 
     public static final String STDIN = "-",
@@ -49,13 +163,54 @@ public class JsonT {
         UTF8 = "UTF-8",
         IDENTITY = "identity.js",
         IDENTITY_ARG = ".",
-        SPACES = "4";
+        SERVE = "serve",
+        SPACES = "4",
+        OPTION_PREFIX = "--",
+        LINES_OPTION = "lines",
+        NDJSON_OPTION = "ndjson",
+        OUT_DIR_OPTION = "out-dir",
+        PARALLELISM_OPTION = "parallelism",
+        CHARSET_OPTION = "charset",
+        SPACES_OPTION = "spaces",
+        LAZY_OPTION = "lazy",
+        STREAM_OPTION = "stream",
+        LCS_OPTION = "lcs",
+        KEY_OPTION = "key",
+        CHECKPOINT_OPTION = "checkpoint",
+        DEDUPE_OPTION = "dedupe",
+        PIPELINE_OPTION = "pipeline",
+        COMPILE_CACHE_OPTION = "compile-cache",
+        CACHE_SIZE_OPTION = "cache-size",
+        RESULT_CACHE_OPTION = "result-cache",
+        STATS_OPTION = "stats",
+        SHARD_OPTION = "shard",
+        REDUCE_OPTION = "reduce",
+        CHUNK_SIZE_OPTION = "chunk-size",
+        UNORDERED_OPTION = "unordered",
+        WATCH_OPTION = "watch",
+        INPUT_FORMAT_OPTION = "input-format",
+        OUTPUT_FORMAT_OPTION = "output-format",
+        SELECT_OPTION = "select",
+        PORT_OPTION = "port",
+        HOST_OPTION = "host",
+        MAX_REQUEST_SIZE_OPTION = "max-request-size",
+        MAX_WAIT_OPTION = "max-wait",
+        RECORDS_OPTION = "records",
+        SPILL_SIZE_OPTION = "spill-size",
+        TYPED_ARRAYS_OPTION = "typed-arrays",
+        PREVIOUS = "-";
+
+    /**
+     * Size of the read and write buffers used when streaming line-delimited records.
+     */
+    public static final int LINE_BUFFER_SIZE = 64 * 1024;
 
     public static enum Operation {
         DIFF(JsonMode.JSON_DIFF),
         MERGE(JsonMode.JSON_MERGE),
         PATCH(JsonMode.JSON_PATCH_DIFF), //uses stepwise operations
-        APPLY(JsonMode.JSON_PATCH_APPLY); //uses stepwise operations
+        APPLY(JsonMode.JSON_PATCH_APPLY), //uses stepwise operations
+        JOIN(null); //in process only, see JsonJoin
 
         private final JsonMode jsonMode;
 
@@ -74,15 +229,38 @@ public class JsonT {
                 return null;
             }
         }
+
+        /**
+         * Apply this operation in-process without going through a TransformerFactory.
+         * The operands are in the same order as on the command line.
+         */
+        public JsonValue apply(JsonStructure operand1, JsonStructure operand2) {
+            return apply(operand1, operand2, new JsonDiff());
+        }
+
+        /**
+         * Apply this operation in-process, computing patches with the given array matching.
+         */
+        public JsonValue apply(JsonStructure operand1, JsonStructure operand2, JsonDiff diff) {
+            try (Stats.Phase phase = Stats.phase(name().toLowerCase())) {
+                return switch (this) {
+                    case DIFF -> JsonDiff.mergePatch(operand1, operand2);
+                    case MERGE -> Json.createMergePatch(operand1).apply(operand2);
+                    case PATCH -> diff.diff(operand1, operand2);
+                    case APPLY -> Json.createPatch(operand1.asJsonArray()).apply(operand2);
+                    case JOIN -> new JsonJoin().join(List.of(operand1, operand2));
+                };
+            }
+        }
     }
 
     /**
      * @param args the command line arguments
      *
-     * Operation mode (diff, merge, patch, apply):
+     * Operation mode (diff, merge, patch, apply), run in process by Operation.apply:
      *   args[0] = operation name
-     *   args[1] = first operand  (file path) — passed as template source
-     *   args[2] = second operand (file path) — passed as transform input
+     *   args[1] = first operand  (file path or "-" for stdin)
+     *   args[2] = second operand (file path or "-" for stdin)
      *   args[3] = result file or "-" for stdout (optional, defaults to "-")
      *
      * Template mode (legacy positional args):
@@ -91,6 +269,56 @@ public class JsonT {
      *   args[2] = output file  (or "-" for stdout)
      *   args[3] = charset
      *   args[4] = spaces
+     *
+     * Options of the form --name or --name=value may precede the positional args:
+     *   --lines (or --ndjson) = treat the input as JSON Lines, one record per line
+     *   --out-dir=dir         = batch mode: args[1..] are input files, directories or globs
+     *   --parallelism=n       = batch mode worker count (defaults to the number of cores)
+     *   --charset, --spaces   = batch mode input/output charset and indentation
+     *   --lazy                = decode the input only as the template reads it
+     *   --typed-arrays[=n]    = lazy: bind arrays of at least n numbers (defaults to 1024) as Int32Array or
+     *                           Float64Array over off-heap buffers, see LazyJson#typedArrays
+     *   --stream[=ndjson]     = write each element the template emits as it is produced
+     *   --compile-cache[=dir] = load and store the compiled code of the template, see CompilationCache
+     *                           (defaults to ~/.cache/jsont)
+     *   --cache-size=n[k|m|g] = compiled code and result cache size limit (defaults to 512m and 1g)
+     *   --result-cache[=dir]  = reuse the output of an earlier run on the same template, inputs and options,
+     *                           see ResultCache (defaults to ~/.cache/jsont/results)
+     *   --stats[=json]        = report time, CPU and allocation per phase to stderr, see Stats
+     *   --shard=pointer       = map the template over chunks of the array at pointer in parallel, see MapReduce
+     *   --reduce=template     = shard: combine the results of the chunks, which are concatenated by default
+     *   --chunk-size=n[k|m|g] = shard: bytes of the array per chunk (defaults to a share of the input)
+     *   --unordered           = shard: combine the results of the chunks as they finish
+     *   --input-format=f      = read json, cbor or msgpack (defaults to the file extension, else json), see Format
+     *   --output-format=f     = write json, cbor or msgpack (defaults to the file extension, else json)
+     *   --select=pointer[,...] = bind only the values at these JSON Pointers, skipping the rest unparsed,
+     *                           in template mode and for diff and patch, see LazyJson#select
+     *   --watch               = keep running and transform inputs again as they or the template change,
+     *                           in template and batch mode, see Watcher
+     *   --lcs                 = patch: align arrays on their longest common subsequence
+     *   --key=path:key[,...]  = patch: match elements of the arrays at path by key
+     *   --lines apply         = apply: args[1] is a JSON Lines stream of patches replayed in order
+     *                           (also when args[1] is a directory or glob of patch files)
+     *   --checkpoint=n        = apply: write a snapshot every n patches as JSON Lines
+     *   --lines diff|patch    = diff or patch two JSON Lines files record by record, matched by --key=pointer,
+     *                           writing one JSON Lines change per record, see RecordDiff
+     *   --records=pointer     = diff, patch: the records are the elements of the array at pointer instead
+     *   --spill-size=n[k|m|g] = diff, patch: record bytes sorted in memory before spilling to disk (defaults to 64m)
+     *
+     * Join mode merges any number of documents, args[1..] being files, directories or globs:
+     *   --dedupe              = drop array elements equal to one already present
+     *   --key=path:key[,...]  = merge elements of the arrays at path that share a key
+     *   --out-dir=dir         = join the inputs of each file name into dir/name instead of stdout
+     *
+     * Pipeline mode runs the stages of a JSON spec in one process, see Pipeline:
+     *   --pipeline=spec.json  = args[0] = input json (or "-"), args[1] = output file (or "-")
+     *
+     * Serve mode answers HTTP requests for the templates in args[1] (defaults to "."), see Server:
+     *   --port=n              = port to listen on (defaults to 8080, 0 for any free port)
+     *   --host=name           = address to listen on (defaults to localhost)
+     *   --parallelism=n       = JS contexts per template, and requests run at once
+     *   --max-request-size=n[k|m|g] = largest request body accepted (defaults to 16m)
+     *   --max-wait=ms         = how long a request waits for a context before a 503 (defaults to 1000)
      */
     public static void main(String[] args) throws IOException, TransformerConfigurationException, TransformerException {
         if (args.length > 0 && "--readme".equals(args[0].trim())) {
@@ -102,35 +330,78 @@ public class JsonT {
         }
 
         if (args.length == 0 || Arrays.asList("/?", "-?", "-h", "--help").contains(args[0].trim())) {
-            PrintWriter out = new PrintWriter(System.err, true);
-            out.println("Usage: jsont <template> [<input>] [<output>] [<charset>] [<spaces>]");
-            out.println();
-            out.println("Examples:");
-            out.println("  jsont .                              # pretty-print stdin to stdout");
-            out.println("  jsont . input.json                   # pretty-print a file to stdout");
-            out.println("  jsont template.js input.json         # transform input.json using template.js");
-            out.println("  jsont template.js - output.json      # transform stdin, write to output.json");
-            out.println("  jsont diff   a.json b.json           # produce a JSON diff of two files");
-            out.println("  jsont merge  a.json b.json           # merge two JSON files");
-            out.println("  jsont patch  a.json b.json           # produce a JSON Patch between two files");
-            out.println("  jsont apply  patch.json input.json   # apply a JSON Patch to a file");
-            out.println();
-            out.println("Use '--readme' for full documentation.");
+            printUsage();
+            System.exit(1);
+        }
+
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+
+        if (!options.containsKey(STATS_OPTION)) {
+            run(args, options);
+            return;
+        }
+        Stats.enable();
+        try {
+            run(args, options);
+        } finally {
+            Stats.report(System.err, "json".equals(options.get(STATS_OPTION)));
+        }
+    }
+
+    private static void run(String[] args, Map<String, String> options)
+        throws IOException, TransformerConfigurationException, TransformerException {
+        if (options.containsKey(PIPELINE_OPTION)) {
+            String spec = options.get(PIPELINE_OPTION);
+            String inputJson = args.length < 1 || args[0].isBlank() ? STDIN : args[0];
+            String outputFile = args.length < 2 || args[1].isBlank() ? STDOUT : args[1];
+            String charset = options.getOrDefault(CHARSET_OPTION, UTF8);
+            System.err.println("pipeline: " + spec + " source: " + inputJson + " result: " + outputFile);
+
+            try (TemplateEngine engine = new TemplateEngine(1)) {
+                JsonArray stages = spec.startsWith("[")
+                    ? readJson(new StringReader(spec)).asJsonArray()
+                    : readJson(Path.of(spec)).asJsonArray();
+                Pipeline pipeline = Pipeline.parse(engine, stages);
+                JsonValue result = pipeline.apply(
+                    readStructure(
+                        inputJson,
+                        charset,
+                        Format.of(options.get(INPUT_FORMAT_OPTION), inputJson),
+                        options.get(SELECT_OPTION)
+                    )
+                );
+                writeResult(
+                    outputFile,
+                    options.getOrDefault(SPACES_OPTION, SPACES),
+                    result,
+                    Format.of(options.get(OUTPUT_FORMAT_OPTION), outputFile)
+                );
+            }
+            return;
+        }
+
+        if (args.length == 0) {
+            printUsage();
             System.exit(1);
         }
 
         GraalsonTransformerFactory.useJavaxXmlTransformTransformerFactory();
 
-        boolean stdinEmpty = System.in.available() == 0;
+        if (SERVE.equals(args[0])) {
+            serve(Path.of(args.length < 2 || args[1].isBlank() ? "." : args[1]), options);
+            return;
+        }
 
         // When stdin is empty and a single arg is given, treat args[0] as the
         // inputJson file and use the IDENTITY template (i.e. pretty-print mode).
+        // stdin is probed last so other modes never block on it.
         if (
-            stdinEmpty &&
             args.length == 1 &&
             Operation.fromString(args[0]) == null &&
             !IDENTITY_ARG.equals(args[0]) &&
-            !args[0].isBlank()
+            !args[0].isBlank() &&
+            System.in.available() == 0
         ) {
             args = new String[] { IDENTITY_ARG, args[0] };
         }
@@ -141,6 +412,130 @@ public class JsonT {
 
         Operation operation = Operation.fromString(templateFile);
 
+        if (
+            options.containsKey(SELECT_OPTION) &&
+            (operation == null
+                ? options.containsKey(OUT_DIR_OPTION) ||
+                    options.containsKey(WATCH_OPTION) ||
+                    options.containsKey(LINES_OPTION) ||
+                    options.containsKey(NDJSON_OPTION) ||
+                    options.containsKey(SHARD_OPTION)
+                : operation != Operation.DIFF && operation != Operation.PATCH)
+        ) {
+            System.err.println("--select applies to a single input in template mode, or to diff and patch");
+            System.exit(1);
+        }
+
+        if (
+            options.containsKey(TYPED_ARRAYS_OPTION) &&
+            (operation != null ||
+                options.containsKey(OUT_DIR_OPTION) ||
+                options.containsKey(LINES_OPTION) ||
+                options.containsKey(NDJSON_OPTION) ||
+                options.containsKey(SHARD_OPTION) ||
+                options.containsKey(SELECT_OPTION))
+        ) {
+            System.err.println("--typed-arrays applies to a single JSON input in template mode");
+            System.exit(1);
+        }
+
+        if (options.containsKey(WATCH_OPTION) && EmbeddedTemplates.get(templateFile) != null) {
+            System.err.println("--watch reloads a template file, not an embedded template: " + templateFile);
+            System.exit(1);
+        }
+
+        if (operation == null && options.containsKey(OUT_DIR_OPTION)) {
+            Path outputDir = Path.of(options.get(OUT_DIR_OPTION));
+            int parallelism = parallelism(options);
+            String charset = options.getOrDefault(CHARSET_OPTION, UTF8);
+            String spaces = options.getOrDefault(SPACES_OPTION, SPACES);
+
+            Map<Path, Path> outputs = resolveBatchOutputs(
+                expandInputs(Arrays.asList(args).subList(1, args.length)),
+                outputDir
+            );
+            System.err.println(
+                "template: " +
+                    templateFile +
+                    " inputs: " +
+                    outputs.size() +
+                    " result: " +
+                    outputDir +
+                    " parallelism: " +
+                    parallelism
+            );
+
+            if (options.containsKey(WATCH_OPTION)) {
+                List<String> inputs = Arrays.asList(args).subList(1, args.length);
+                try (
+                    TemplateEngine engine = new TemplateEngine(parallelism);
+                    Watcher watcher = new Watcher(engine, Path.of(templateFile), inputs, (template, changed, all) -> {
+                        Map<Path, Path> affected = resolveBatchOutputs(all, outputDir);
+                        affected.keySet().retainAll(changed);
+                        transformFiles(template, affected, parallelism, toCharset(charset), spaces, System.err);
+                    })
+                ) {
+                    watcher.ignoring(outputDir).run();
+                }
+                return;
+            }
+
+            CompilationCache cache = compilationCache(options);
+            long failed;
+            try (TemplateEngine engine = newTemplateEngine(cache, parallelism, templateFile)) {
+                CompiledTemplate template = engine.compile(Path.of(templateFile));
+                failed = transformFiles(template, outputs, parallelism, toCharset(charset), spaces, System.err);
+            }
+            evict(cache);
+            if (failed > 0) {
+                // each failure is already reported; a failed run must still exit non-zero
+                throw new TransformerException(failed + " of " + outputs.size() + " files failed");
+            }
+            return;
+        }
+
+        if (operation == Operation.JOIN) {
+            JsonJoin join = new JsonJoin();
+            if (options.containsKey(DEDUPE_OPTION)) {
+                join = join.dedupe();
+            }
+            if (options.containsKey(KEY_OPTION)) {
+                join = join.keys(options.get(KEY_OPTION));
+            }
+            List<Path> inputs = expandInputs(Arrays.asList(args).subList(1, args.length));
+            System.err.println("operation: " + operation + " inputs: " + inputs.size());
+
+            List<JsonStructure> documents;
+            try (Stats.Phase phase = Stats.phase("parse")) {
+                documents = JsonJoin.readAll(inputs, toCharset(options.getOrDefault(CHARSET_OPTION, UTF8)));
+            }
+            String spaces = options.getOrDefault(SPACES_OPTION, SPACES);
+            if (!options.containsKey(OUT_DIR_OPTION)) {
+                JsonValue result;
+                try (Stats.Phase phase = Stats.phase("join")) {
+                    result = join.join(documents);
+                }
+                writeResult(STDOUT, spaces, result, Format.of(options.get(OUTPUT_FORMAT_OPTION), STDOUT));
+                return;
+            }
+            Map<Path, List<JsonStructure>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                groups.computeIfAbsent(inputs.get(i).getFileName(), name -> new ArrayList<>()).add(documents.get(i));
+            }
+            Path outputDir = Path.of(options.get(OUT_DIR_OPTION));
+            Files.createDirectories(outputDir);
+            for (Map.Entry<Path, List<JsonStructure>> group : groups.entrySet()) {
+                Path output = outputDir.resolve(group.getKey());
+                JsonValue result;
+                try (Stats.Phase phase = Stats.phase("join")) {
+                    result = join.join(group.getValue());
+                }
+                writeResult(output.toString(), spaces, result);
+                System.err.println(group.getKey() + ": " + group.getValue().size() + " file(s) -> " + output);
+            }
+            return;
+        }
+
         if (operation != null) {
             // Operation mode:
             //   args[0] = operation
@@ -163,17 +558,6 @@ public class JsonT {
             String operand2Path = args[2];
             String outputFile = args.length < 4 ? STDOUT : args[3].isBlank() ? STDOUT : args[3];
 
-            JsonWriter jwriter = createJsonWriter(outputFile, SPACES);
-
-            Source operand1 = STDIN.equals(operand1Path)
-                ? readStdinSource(UTF8)
-                : new GraalsonSource(Path.of(operand1Path));
-            Source operand2 = STDIN.equals(operand2Path)
-                ? readStdinSource(UTF8)
-                : new GraalsonSource(Path.of(operand2Path));
-
-            Result result = new GraalsonResult(jwriter);
-
             System.err.println(
                 "operation: " +
                     operation +
@@ -185,40 +569,500 @@ public class JsonT {
                     outputFile
             );
 
-            TransformerFactory factory = TransformerFactory.newInstance();
-            factory.setAttribute(GraalsonTransformerFactory.JSON_MODE_ATTRIBUTE, operation.getJsonMode());
-            factory.newTemplates(operand1).newTransformer().transform(operand2, result);
+            if (
+                (operation == Operation.DIFF || operation == Operation.PATCH) &&
+                (options.containsKey(LINES_OPTION) ||
+                    options.containsKey(NDJSON_OPTION) ||
+                    options.containsKey(RECORDS_OPTION))
+            ) {
+                String records = options.get(RECORDS_OPTION);
+                RecordDiff recordDiff = new RecordDiff(
+                    operation,
+                    options.get(KEY_OPTION),
+                    options.containsKey(LCS_OPTION) ? new JsonDiff().lcs() : new JsonDiff()
+                );
+                if (options.containsKey(SPILL_SIZE_OPTION)) {
+                    recordDiff.spillSize(CompilationCache.parseSize(options.get(SPILL_SIZE_OPTION)));
+                }
+                try (ResultStream out = new ResultStream(outputFile, "0", true)) {
+                    recordDiff.diff(
+                        records == null ? RecordDiff.lines(operand1Path) : RecordDiff.elements(Path.of(operand1Path), records),
+                        records == null ? RecordDiff.lines(operand2Path) : RecordDiff.elements(Path.of(operand2Path), records),
+                        out
+                    );
+                }
+                System.err.println(
+                    "records added: " +
+                        recordDiff.getAdded() +
+                        " removed: " +
+                        recordDiff.getRemoved() +
+                        " changed: " +
+                        recordDiff.getChanged() +
+                        " unchanged: " +
+                        recordDiff.getUnchanged()
+                );
+                return;
+            }
+
+            JsonDiff diff = jsonDiff(options);
+
+            if (
+                operation == Operation.APPLY &&
+                (options.containsKey(LINES_OPTION) ||
+                    options.containsKey(NDJSON_OPTION) ||
+                    Files.isDirectory(Path.of(operand1Path)) ||
+                    isGlob(operand1Path))
+            ) {
+                int checkpoint = Integer.parseInt(options.getOrDefault(CHECKPOINT_OPTION, "0"));
+                PatchReplay replay = new PatchReplay(readStructure(operand2Path, UTF8));
+                boolean lines = options.containsKey(LINES_OPTION) || options.containsKey(NDJSON_OPTION);
+                try (
+                    BufferedReader in = lines ? openLineReader(operand1Path, UTF8) : null;
+                    Stream<JsonArray> patches = lines
+                        ? PatchReplay.readLines(in)
+                        : PatchReplay.readFiles(expandInputs(List.of(operand1Path)))
+                ) {
+                    if (checkpoint > 0) {
+                        try (ResultStream out = new ResultStream(outputFile, SPACES, true)) {
+                            replay.replay(patches, checkpoint, out);
+                        }
+                    } else {
+                        replay.replay(patches, 0, null);
+                        writeResult(outputFile, SPACES, replay.snapshot());
+                    }
+                }
+                System.err.println("patches: " + replay.getPatches() + " operations: " + replay.getOperations());
+                return;
+            }
+
+            String inputFormat = options.get(INPUT_FORMAT_OPTION);
+            Format outputFormat = Format.of(options.get(OUTPUT_FORMAT_OPTION), outputFile);
+            ResultCache results = resultCache(options);
+            String key = results == null
+                ? null
+                : results.key(options, List.of(operation.name(), outputFormat.name()), List.of(operand1Path, operand2Path));
+            runCached(results, key, outputFile, output -> {
+                String select = options.get(SELECT_OPTION);
+                JsonStructure operand1 = readStructure(operand1Path, UTF8, Format.of(inputFormat, operand1Path), select);
+                JsonStructure operand2 = readStructure(operand2Path, UTF8, Format.of(inputFormat, operand2Path), select);
+                writeResult(output, SPACES, operation.apply(operand1, operand2, diff), outputFormat);
+            });
         } else {
             String inputJson = args.length < 2 ? STDIN : args[1].isBlank() ? STDIN : args[1];
             String outputFile = args.length < 3 ? STDOUT : args[2].isBlank() ? STDOUT : args[2];
             String charset = args.length < 4 ? UTF8 : args[3].isBlank() ? UTF8 : args[3];
             String spaces = args.length < 5 ? SPACES : args[4].isBlank() ? SPACES : args[4];
 
-            JsonWriter jwriter = createJsonWriter(outputFile, spaces);
+            if (options.containsKey(WATCH_OPTION)) {
+                if (STDIN.equals(inputJson)) {
+                    System.err.println("--watch requires an input file: jsont --watch <template> <input> [<output>]");
+                    System.exit(1);
+                }
+                System.err.println("template: " + templateFile + " watch: " + inputJson + " result: " + outputFile);
+                try (
+                    TemplateEngine engine = new TemplateEngine(1);
+                    Watcher watcher = new Watcher(engine, Path.of(templateFile), List.of(inputJson), (template, changed, all) ->
+                        writeResult(outputFile, spaces, template.transform(readStructure(inputJson, charset)))
+                    )
+                ) {
+                    if (!STDOUT.equals(outputFile)) {
+                        watcher.ignoring(Path.of(outputFile));
+                    }
+                    watcher.run();
+                }
+                return;
+            }
+
+            Format outputFormat = Format.of(options.get(OUTPUT_FORMAT_OPTION), outputFile);
+            ResultCache results = resultCache(options);
+            String key = results == null
+                ? null
+                : results.key(
+                    options,
+                    List.of("template", charset, spaces, outputFormat.name()),
+                    List.of(templateFile, inputJson)
+                );
+            runCached(results, key, outputFile, output ->
+                transform(templateFile, inputJson, output, outputFormat, charset, spaces, options)
+            );
+        }
+    }
 
+    /**
+     * Template mode: run the template over one input in the way the options ask for.
+     */
+    private static void transform(
+        String templateFile,
+        String inputJson,
+        String outputFile,
+        Format outputFormat,
+        String charset,
+        String spaces,
+        Map<String, String> options
+    ) throws IOException, TransformerException {
+        Format inputFormat = Format.of(options.get(INPUT_FORMAT_OPTION), inputJson);
+        String select = options.get(SELECT_OPTION);
+        if (
+            IDENTITY.equals(templateFile) &&
+            !options.containsKey(SHARD_OPTION) &&
+            !options.containsKey(LINES_OPTION) &&
+            !options.containsKey(NDJSON_OPTION) &&
+            !options.containsKey(STREAM_OPTION)
+        ) {
+            System.err.println(
+                "template: " + templateFile + " (copy) source: " + inputJson + " result: " + outputFile + " charset: " + charset
+            );
+            if (select != null) {
+                writeResult(outputFile, spaces, readStructure(inputJson, charset, inputFormat, select), outputFormat);
+            } else {
+                reformat(inputJson, outputFile, inputFormat, outputFormat, charset, spaces);
+            }
+            return;
+        }
+        if (options.containsKey(SHARD_OPTION)) {
+            if (inputFormat != Format.JSON) {
+                System.err.println("--shard scans text JSON, convert " + inputJson + " first");
+                System.exit(1);
+            }
+            int parallelism = parallelism(options);
             System.err.println(
                 "template: " +
                     templateFile +
+                    " shard: " +
+                    options.get(SHARD_OPTION) +
                     " source: " +
                     inputJson +
                     " result: " +
                     outputFile +
+                    " parallelism: " +
+                    parallelism
+            );
+
+            CompilationCache cache = compilationCache(options);
+            try (TemplateEngine engine = newTemplateEngine(cache, parallelism, templateFile)) {
+                MapReduce job = new MapReduce(engine.compile(Path.of(templateFile)), options.get(SHARD_OPTION));
+                if (options.containsKey(REDUCE_OPTION)) {
+                    job = job.reduce(engine.compile(Path.of(options.get(REDUCE_OPTION))));
+                }
+                if (options.containsKey(CHUNK_SIZE_OPTION)) {
+                    job = job.chunkSize(CompilationCache.parseSize(options.get(CHUNK_SIZE_OPTION)));
+                }
+                if (options.containsKey(UNORDERED_OPTION)) {
+                    job = job.unordered();
+                }
+                JsonValue result = job.apply(new LazyJson(readBytes(inputJson, charset)), parallelism);
+                writeResult(outputFile, spaces, result, outputFormat);
+            }
+            evict(cache);
+            return;
+        }
+
+        if (options.containsKey(LINES_OPTION) || options.containsKey(NDJSON_OPTION)) {
+            System.err.println(
+                "template: " +
+                    templateFile +
+                    " lines: " +
+                    inputJson +
+                    " result: " +
+                    outputFile +
+                    " charset: " +
+                    charset
+            );
+
+            // TrAX reads templates from files, so an embedded template runs on a TemplateEngine
+            if (EmbeddedTemplates.get(templateFile) != null) {
+                try (
+                    TemplateEngine engine = new TemplateEngine(1);
+                    BufferedReader in = openLineReader(inputJson, charset);
+                    BufferedWriter out = openLineWriter(outputFile, charset)
+                ) {
+                    failLines(transformLines(engine.compile(Path.of(templateFile)), in, out, System.err));
+                }
+                return;
+            }
+
+            TransformerFactory factory = TransformerFactory.newInstance();
+            factory.setAttribute(GraalsonTransformerFactory.JSON_MODE_ATTRIBUTE, JsonMode.JSON_TRANSFORM);
+            Templates templates = factory.newTemplates(new GraalsonSource(Path.of(templateFile)));
+
+            try (
+                BufferedReader in = openLineReader(inputJson, charset);
+                BufferedWriter out = openLineWriter(outputFile, charset)
+            ) {
+                failLines(transformLines(templates, in, out, System.err));
+            }
+            return;
+        }
+
+        if (
+            options.containsKey(LAZY_OPTION) ||
+            options.containsKey(STREAM_OPTION) ||
+            options.containsKey(TYPED_ARRAYS_OPTION)
+        ) {
+            boolean lazy = options.containsKey(LAZY_OPTION) || options.containsKey(TYPED_ARRAYS_OPTION);
+            String stream = options.get(STREAM_OPTION);
+            String typed = options.get(TYPED_ARRAYS_OPTION);
+            if (typed != null && inputFormat != Format.JSON) {
+                System.err.println("--typed-arrays applies to JSON input");
+                System.exit(1);
+            }
+            System.err.println(
+                "template: " +
+                    templateFile +
+                    (lazy ? " lazy source: " : " source: ") +
+                    inputJson +
+                    (stream == null ? " result: " : " stream: ") +
+                    outputFile +
                     " charset: " +
                     charset
             );
 
-            Source template = new GraalsonSource(Path.of(templateFile));
+            CompilationCache cache = compilationCache(options);
+            try (TemplateEngine engine = newTemplateEngine(cache, 1, templateFile)) {
+                CompiledTemplate compiled = engine.compile(Path.of(templateFile));
+                // LazyJson scans text, so binary input is decoded up front; a selection is already projected
+                boolean scan = lazy && inputFormat == Format.JSON && select == null;
+                int threshold = typed == null ? 0 : typed.isBlank() ? LazyJson.DEFAULT_TYPED_ARRAY_SIZE : Integer.parseInt(typed);
+                if (stream == null) {
+                    JsonValue result = scan
+                        ? compiled.transform(new LazyJson(readBytes(inputJson, charset)).typedArrays(threshold))
+                        : compiled.transform(readStructure(inputJson, charset, inputFormat, select));
+                    writeResult(outputFile, spaces, result, outputFormat);
+                } else {
+                    try (ResultStream out = new ResultStream(outputFile, spaces, NDJSON_OPTION.equals(stream))) {
+                        if (scan) {
+                            compiled.transform(new LazyJson(readBytes(inputJson, charset)).typedArrays(threshold), out);
+                        } else {
+                            compiled.transform(readStructure(inputJson, charset, inputFormat, select), out);
+                        }
+                    }
+                }
+            }
+            evict(cache);
+            return;
+        }
+
+        // Run on a TemplateEngine when it can reuse compiled code, the template is embedded, a binary
+        // format is read or written or the input is projected, otherwise through the TrAX TransformerFactory
+        CompilationCache cache = compilationCache(options);
+        boolean embedded = EmbeddedTemplates.get(templateFile) != null;
+        boolean engineOnly =
+            embedded ||
+            inputFormat != Format.JSON ||
+            outputFormat != Format.JSON ||
+            select != null;
+        if (engineOnly || (cache != null && cache.isSupported())) {
+            TemplateEngine cached = newTemplateEngine(cache, 1, templateFile);
+            if (engineOnly || cached.isCached()) {
+                System.err.println(
+                    "template: " +
+                        templateFile +
+                        (cached.isCached() ? " (cached)" : embedded ? " (embedded)" : "") +
+                        " source: " +
+                        inputJson +
+                        " result: " +
+                        outputFile
+                );
+                try (TemplateEngine engine = cached) {
+                    JsonValue result = engine
+                        .compile(Path.of(templateFile))
+                        .transform(readStructure(inputJson, charset, inputFormat, select));
+                    writeResult(outputFile, spaces, result, outputFormat);
+                }
+                evict(cache);
+                return;
+            }
+            cached.close();
+        }
+
+        JsonWriter jwriter = timed(createJsonWriter(outputFile, spaces));
 
-            Source source = STDIN.equals(inputJson) ? readStdinSource(charset) : new GraalsonSource(Path.of(inputJson));
+        System.err.println(
+            "template: " +
+                templateFile +
+                " source: " +
+                inputJson +
+                " result: " +
+                outputFile +
+                " charset: " +
+                charset
+        );
 
-            Result result = new GraalsonResult(jwriter);
-            result.setSystemId(STDOUT.equals(outputFile) ? "<stdout>" : outputFile);
+        Source template = new GraalsonSource(Path.of(templateFile));
 
-            System.err.println("template: " + template + " source: " + source + " result: " + result);
+        Source source = STDIN.equals(inputJson) ? readStdinSource(charset) : readFileSource(inputJson, charset);
 
-            TransformerFactory factory = TransformerFactory.newInstance();
-            factory.setAttribute(GraalsonTransformerFactory.JSON_MODE_ATTRIBUTE, JsonMode.JSON_TRANSFORM);
-            factory.newTemplates(template).newTransformer().transform(source, result);
+        Result result = new GraalsonResult(jwriter);
+        result.setSystemId(STDOUT.equals(outputFile) ? "<stdout>" : outputFile);
+
+        System.err.println("template: " + template + " source: " + source + " result: " + result);
+
+        TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setAttribute(GraalsonTransformerFactory.JSON_MODE_ATTRIBUTE, JsonMode.JSON_TRANSFORM);
+        Templates templates;
+        try (Stats.Phase phase = Stats.phase("compile")) {
+            templates = factory.newTemplates(template);
+        }
+        // the input is parsed and the result written while the transformer runs
+        try (Stats.Phase phase = Stats.phase("transform")) {
+            templates.newTransformer().transform(source, result);
+        }
+    }
+
+    /**
+     * Print the short usage summary to stderr.
+     */
+    private static void printUsage() {
+        PrintWriter out = new PrintWriter(System.err, true);
+        out.println("Usage: jsont <template> [<input>] [<output>] [<charset>] [<spaces>]");
+        out.println();
+        out.println("Examples:");
+        out.println("  jsont .                              # pretty-print stdin to stdout");
+        out.println("  jsont . input.json                   # pretty-print a file to stdout");
+        out.println("  jsont template.js input.json         # transform input.json using template.js");
+        out.println("  jsont template.js - output.json      # transform stdin, write to output.json");
+        out.println("  jsont diff   a.json b.json           # produce a JSON diff of two files");
+        out.println("  jsont merge  a.json b.json           # merge two JSON files");
+        out.println("  jsont patch  a.json b.json           # produce a JSON Patch between two files");
+        out.println("  jsont apply  patch.json input.json   # apply a JSON Patch to a file");
+        out.println("  jsont --key=/items:id patch a b      # match elements of /items by their id member");
+        out.println("  jsont --lines apply log.ndjson in.json  # replay a stream of patches onto one document");
+        out.println("  jsont --dedupe join 'target/**/reflect-config.json'  # deep merge many files into one");
+        out.println("  jsont --pipeline=stages.json in.json # run templates and operations in one process");
+        out.println("  jsont --lines template.js in.ndjson  # transform each line of a JSON Lines file");
+        out.println("  jsont --out-dir=out template.js in/  # transform every *.json under in/ in parallel");
+        out.println("  jsont --shard=/hits/hits map.js big.json  # map a template over one huge array on every core");
+        out.println("  jsont --watch --out-dir=out t.js in/ # transform again whenever t.js or a file under in/ changes");
+        out.println("  jsont --port=8080 serve templates/   # serve every template under templates/ over HTTP");
+        out.println();
+        out.println("Use '--readme' for full documentation.");
+    }
+
+    /**
+     * Serve mode: run a Server over the templates directory until the process is stopped.
+     */
+    private static void serve(Path templates, Map<String, String> options) throws IOException {
+        int parallelism = parallelism(options);
+        TemplateEngine engine = new TemplateEngine(parallelism);
+        Server server = new Server(engine, templates).diff(jsonDiff(options));
+        if (options.containsKey(MAX_REQUEST_SIZE_OPTION)) {
+            server.maxRequestBytes(CompilationCache.parseSize(options.get(MAX_REQUEST_SIZE_OPTION)));
+        }
+        if (options.containsKey(MAX_WAIT_OPTION)) {
+            server.maxWait(Long.parseLong(options.get(MAX_WAIT_OPTION)));
+        }
+        server.start(
+            new InetSocketAddress(
+                options.getOrDefault(HOST_OPTION, "localhost"),
+                Integer.parseInt(options.getOrDefault(PORT_OPTION, "8080"))
+            )
+        );
+        Runtime.getRuntime().addShutdownHook(
+            new Thread(() -> {
+                server.close();
+                engine.close();
+            })
+        );
+        InetSocketAddress address = server.getAddress();
+        System.err.println(
+            "serve: http://" +
+                address.getHostString() +
+                ":" +
+                address.getPort() +
+                " templates: " +
+                server.names().size() +
+                " parallelism: " +
+                parallelism
+        );
+    }
+
+    /**
+     * The array matching given by --lcs and --key.
+     */
+    private static JsonDiff jsonDiff(Map<String, String> options) {
+        JsonDiff diff = new JsonDiff();
+        if (options.containsKey(LCS_OPTION)) {
+            diff = diff.lcs();
+        }
+        if (options.containsKey(KEY_OPTION)) {
+            diff = diff.keys(options.get(KEY_OPTION));
+        }
+        return diff;
+    }
+
+    /**
+     * The worker count given by --parallelism, or the number of cores.
+     */
+    private static int parallelism(Map<String, String> options) {
+        return options.containsKey(PARALLELISM_OPTION)
+            ? Integer.parseInt(options.get(PARALLELISM_OPTION))
+            : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The compiled code cache configured by --compile-cache, or null when it is not given.
+     */
+    private static CompilationCache compilationCache(Map<String, String> options) {
+        if (!options.containsKey(COMPILE_CACHE_OPTION)) {
+            return null;
+        }
+        String dir = options.get(COMPILE_CACHE_OPTION);
+        long maxBytes = options.containsKey(CACHE_SIZE_OPTION)
+            ? CompilationCache.parseSize(options.get(CACHE_SIZE_OPTION))
+            : CompilationCache.DEFAULT_MAX_BYTES;
+        return new CompilationCache(dir.isEmpty() ? CompilationCache.defaultDir() : Path.of(dir), maxBytes);
+    }
+
+    /**
+     * An engine that loads and stores the compiled code of the template when the cache and the
+     * polyglot runtime allow it, or a plain engine otherwise.
+     */
+    private static TemplateEngine newTemplateEngine(CompilationCache cache, int poolSize, String templateFile)
+        throws IOException {
+        if (cache == null || !cache.isSupported()) {
+            return new TemplateEngine(poolSize);
+        }
+        return cache.engine(poolSize, readText(Path.of(templateFile)));
+    }
+
+    /**
+     * The result cache configured by --result-cache, or null when it is not given.
+     */
+    private static ResultCache resultCache(Map<String, String> options) {
+        if (!options.containsKey(RESULT_CACHE_OPTION)) {
+            return null;
+        }
+        String dir = options.get(RESULT_CACHE_OPTION);
+        long maxBytes = options.containsKey(CACHE_SIZE_OPTION)
+            ? CompilationCache.parseSize(options.get(CACHE_SIZE_OPTION))
+            : ResultCache.DEFAULT_MAX_BYTES;
+        return new ResultCache(dir.isEmpty() ? ResultCache.defaultDir() : Path.of(dir), maxBytes);
+    }
+
+    /**
+     * Run a job that writes to the output file, through the result cache when there is one and
+     * the key could be computed.
+     */
+    private static void runCached(ResultCache results, String key, String outputFile, ResultCache.Job job)
+        throws IOException, TransformerException {
+        if (results == null || key == null) {
+            job.run(outputFile);
+            return;
+        }
+        boolean hit = results.run(key, outputFile, job);
+        long[] counters = results.counters();
+        System.err.println(
+            "result cache: " + (hit ? "hit " : "miss ") + key + " hits: " + counters[0] + " misses: " + counters[1]
+        );
+    }
+
+    private static void evict(CompilationCache cache) {
+        if (cache != null && cache.isSupported()) {
+            try {
+                cache.evict();
+            } catch (IOException e) {
+                System.err.println("cache: " + e.getMessage());
+            }
         }
     }
 
@@ -384,39 +1228,5937 @@ public class JsonT {
     }
 
     /**
-     * Create a JsonWriter that writes to the given file, or stdout if the path is "-".
+     * Create a JsonGenerator that writes to the given file, or stdout if the path is "-",
+     * indented by the given number of spaces.
+     */
+    private static JsonGenerator createJsonGenerator(String outputFile, String spaces) throws IOException {
+        int indent = Integer.parseInt(spaces);
+        Writer writer = openWriter(outputFile);
+        return Json.createGenerator(indent > 0 ? new IndentingWriter(writer, indent) : writer);
+    }
+
+    /**
+     * Create a JsonWriter that writes to the given file, or stdout if the path is "-",
+     * serialising large arrays in parallel chunks.
      */
     private static JsonWriter createJsonWriter(String outputFile, String spaces) throws IOException {
-        Map<String, Object> config = new HashMap<>();
-        config.put("spaces", Integer.valueOf(spaces));
-        JsonWriterFactory wfactory = Json.createWriterFactory(config);
-        return wfactory.createWriter(
-            STDOUT.equals(outputFile) ? new PrintWriter(System.out) : new FileWriter(outputFile)
+        return new ChunkedJsonWriter(openWriter(outputFile), Integer.parseInt(spaces), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Time what a writer writes as the write phase, for a TrAX transformer that writes its result itself.
+     */
+    private static JsonWriter timed(JsonWriter writer) {
+        return new JsonWriter() {
+            @Override
+            public void writeArray(JsonArray array) {
+                write(array);
+            }
+
+            @Override
+            public void writeObject(JsonObject object) {
+                write(object);
+            }
+
+            @Override
+            public void write(JsonStructure value) {
+                write((JsonValue) value);
+            }
+
+            @Override
+            public void write(JsonValue value) {
+                try (Stats.Phase phase = Stats.phase("write")) {
+                    writer.write(value);
+                }
+            }
+
+            @Override
+            public void close() {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Open a UTF-8 writer over the given file, or stdout if the path is "-".
+     */
+    private static Writer openWriter(String outputFile) throws IOException {
+        if (STDOUT.equals(outputFile)) {
+            return new Utf8Writer(stdout());
+        }
+        return new Utf8Writer(
+            FileChannel.open(
+                Path.of(outputFile),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            )
         );
     }
 
     /**
-     * Build a GraalsonSource that reads JSON from standard input.
+     * Write a result to the given file, or stdout if the path is "-", timed as the write phase.
      */
-    private static Source readStdinSource(String charset) {
-        Reader reader;
-        if (System.console() != null) {
-            reader = new InputStreamReader(
-                System.in,
-                (UTF8.equalsIgnoreCase(charset))
-                    ? java.nio.charset.StandardCharsets.UTF_8
-                    : java.nio.charset.Charset.forName(charset)
-            );
-        } else {
-            ReadableByteChannel channel = Channels.newChannel(System.in);
-            reader = new InputStreamReader(
-                Channels.newInputStream(channel),
-                (UTF8.equalsIgnoreCase(charset))
-                    ? java.nio.charset.StandardCharsets.UTF_8
-                    : java.nio.charset.Charset.forName(charset)
-            );
+    private static void writeResult(String outputFile, String spaces, JsonValue result) throws IOException {
+        writeResult(outputFile, spaces, result, Format.of(null, outputFile));
+    }
+
+    /**
+     * Write a result in the given format; spaces only apply to text JSON.
+     */
+    private static void writeResult(String outputFile, String spaces, JsonValue result, Format format)
+        throws IOException {
+        if (format == Format.JSON) {
+            try (Stats.Phase phase = Stats.phase("write"); JsonWriter jwriter = createJsonWriter(outputFile, spaces)) {
+                jwriter.write(result);
+            }
+            return;
+        }
+        try (
+            Stats.Phase phase = Stats.phase("write");
+            OutputStream out = Stats.counting(
+                STDOUT.equals(outputFile) ? stdout() : Files.newOutputStream(Path.of(outputFile))
+            )
+        ) {
+            format.write(result, out);
+        }
+    }
+
+    /**
+     * Identity: copy the input to the output without running a template, re-indented by spaces and
+     * transcoded from the input charset. Text JSON is pumped from a JsonParser straight into a
+     * JsonGenerator, so nothing is materialised and memory stays constant however large the input.
+     */
+    private static void reformat(
+        String inputJson,
+        String outputFile,
+        Format inputFormat,
+        Format outputFormat,
+        String charset,
+        String spaces
+    ) throws IOException {
+        if (inputFormat != Format.JSON || outputFormat != Format.JSON) {
+            writeResult(outputFile, spaces, readStructure(inputJson, charset, inputFormat), outputFormat);
+            return;
+        }
+        try (
+            Stats.Phase phase = Stats.phase("copy");
+            JsonParser parser = createJsonParser(inputJson, charset);
+            JsonGenerator generator = createJsonGenerator(outputFile, spaces)
+        ) {
+            copy(parser, generator);
+        }
+    }
+
+    /**
+     * Write every event of the parser's next value to the generator, leaving both positioned after it.
+     */
+    public static void copy(JsonParser parser, JsonGenerator generator) {
+        int depth = 0;
+        do {
+            switch (parser.next()) {
+                case START_OBJECT -> {
+                    generator.writeStartObject();
+                    depth++;
+                }
+                case START_ARRAY -> {
+                    generator.writeStartArray();
+                    depth++;
+                }
+                case END_OBJECT, END_ARRAY -> {
+                    generator.writeEnd();
+                    depth--;
+                }
+                case KEY_NAME -> generator.writeKey(parser.getString());
+                case VALUE_STRING -> generator.write(parser.getString());
+                case VALUE_NUMBER -> generator.write(parser.getBigDecimal());
+                case VALUE_TRUE -> generator.write(true);
+                case VALUE_FALSE -> generator.write(false);
+                case VALUE_NULL -> generator.writeNull();
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Create a JsonParser over the given file, or stdin if the path is "-". UTF-8 files are memory
+     * mapped; missing files are looked up on the classpath.
+     */
+    private static JsonParser createJsonParser(String inputJson, String charset) throws IOException {
+        if (STDIN.equals(inputJson)) {
+            return UTF8.equalsIgnoreCase(charset)
+                ? Json.createParser(System.in)
+                : Json.createParser(new InputStreamReader(System.in, toCharset(charset)));
+        }
+        Path path = Path.of(inputJson);
+        if (!Files.exists(path)) {
+            return Json.createParser(new StringReader(readText(path)));
+        }
+        Stats.count("inputBytes", Files.size(path));
+        return UTF8.equalsIgnoreCase(charset)
+            ? Json.createParser(JsonBytes.map(path).newInputStream())
+            : Json.createParser(Files.newBufferedReader(path, toCharset(charset)));
+    }
+
+    /**
+     * Strip leading --name and --name=value options from the argument list into the given map.
+     * A lone "--" ends option parsing. Returns the remaining positional arguments.
+     */
+    static String[] parseOptions(String[] args, Map<String, String> options) {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith(OPTION_PREFIX); i++) {
+            String option = args[i].substring(OPTION_PREFIX.length());
+            if (option.isEmpty()) {
+                i++;
+                break;
+            }
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                options.put(option, "");
+            } else {
+                options.put(option.substring(0, eq), option.substring(eq + 1));
+            }
+        }
+        return Arrays.copyOfRange(args, i, args.length);
+    }
+
+    /**
+     * Transform a stream of JSON Lines records, writing one compact result per line.
+     *
+     * The compiled templates are reused for every record so only parsing and template
+     * evaluation are paid per line. Blank lines are skipped. A record that fails to parse
+     * or transform is reported to {@code errors} with its line number and the stream carries on.
+     * Output is flushed whenever the input has no further data buffered, so interactive
+     * pipes see each result promptly while bulk input is written in large blocks.
+     *
+     * @return the number of records that failed
+     */
+    public static long transformLines(Templates templates, BufferedReader in, Writer out, PrintStream errors)
+        throws IOException, TransformerConfigurationException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("spaces", 0);
+        JsonWriterFactory wfactory = Json.createWriterFactory(config);
+        Transformer[] transformer = { templates.newTransformer() };
+        return transformLines(in, out, errors, (record, buffer) -> {
+            try {
+                transformer[0].transform(new GraalsonSource(record), new GraalsonResult(wfactory.createWriter(buffer)));
+            } catch (TransformerException | RuntimeException e) {
+                transformer[0] = templates.newTransformer();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Transform a stream of JSON Lines records with a compiled template, as above.
+     */
+    public static long transformLines(CompiledTemplate template, BufferedReader in, Writer out, PrintStream errors)
+        throws IOException {
+        Map<String, Object> config = new HashMap<>();
+        config.put("spaces", 0);
+        JsonWriterFactory wfactory = Json.createWriterFactory(config);
+        return transformLines(in, out, errors, (record, buffer) -> {
+            try (JsonWriter writer = wfactory.createWriter(buffer)) {
+                writer.write(template.transform(record));
+            }
+        });
+    }
+
+    /**
+     * Transforms one record into a buffer.
+     */
+    @FunctionalInterface
+    private interface RecordTransform {
+        void transform(JsonStructure record, Writer buffer) throws TransformerException;
+    }
+
+    private static long transformLines(BufferedReader in, Writer out, PrintStream errors, RecordTransform transform)
+        throws IOException {
+        long lineNumber = 0, records = 0, failed = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            records++;
+            Stats.record(lineNumber);
+            Stats.count("records", 1);
+            if (Stats.isEnabled()) {
+                Stats.count("inputBytes", utf8Length(line) + 1);
+            }
+            // buffer each record so a failure never leaves a partial line in the output
+            StringWriter buffer = new StringWriter(line.length());
+            try {
+                JsonStructure record;
+                try (Stats.Phase phase = Stats.phase("parse"); JsonReader reader = Json.createReader(new StringReader(line))) {
+                    record = reader.read();
+                }
+                try (Stats.Phase phase = Stats.phase("transform")) {
+                    transform.transform(record, buffer);
+                }
+            } catch (TransformerException | RuntimeException e) {
+                failed++;
+                errors.println("line " + lineNumber + ": " + e.getMessage());
+                continue;
+            }
+            try (Stats.Phase phase = Stats.phase("write")) {
+                out.write(buffer.toString().strip());
+                out.write('\n');
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        }
+        out.flush();
+        Stats.record(0);
+
+        if (failed > 0) {
+            errors.println(failed + " of " + records + " records failed");
+        }
+        return failed;
+    }
+
+    /**
+     * Fail a --lines run in which any record failed; each failure is already reported.
+     */
+    private static void failLines(long failed) throws TransformerException {
+        if (failed > 0) {
+            throw new TransformerException(failed + (failed == 1 ? " record" : " records") + " failed");
+        }
+    }
+
+    /**
+     * The number of bytes the text takes in UTF-8, without encoding it.
+     */
+    private static long utf8Length(String text) {
+        long length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // a surrogate pair is 4 bytes, 2 per char
+                length += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Transform many files with one compiled template on a work-stealing pool.
+     *
+     * Each worker borrows its own JS context from the template's pool, so with the pool
+     * sized to the parallelism no worker ever waits on another. Failures are reported to
+     * {@code errors} per file in input order, regardless of completion order.
+     *
+     * @param outputs input file to output file, in the order results should be reported
+     * @return the number of files that failed
+     */
+    public static long transformFiles(
+        CompiledTemplate template,
+        Map<Path, Path> outputs,
+        int parallelism,
+        Charset charset,
+        String spaces,
+        PrintStream errors
+    ) throws IOException {
+        int indent = Integer.parseInt(spaces);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Map<Path, Future<?>> tasks = new LinkedHashMap<>();
+            long index = 0;
+            for (Map.Entry<Path, Path> entry : outputs.entrySet()) {
+                Path input = entry.getKey(), output = entry.getValue();
+                long record = ++index;
+                tasks.put(
+                    input,
+                    pool.submit(() -> {
+                        Stats.record(record);
+                        Stats.count("records", 1);
+                        JsonStructure document;
+                        try (Stats.Phase phase = Stats.phase("parse")) {
+                            document = readJson(input, charset);
+                        }
+                        JsonValue result = template.transform(document);
+                        Files.createDirectories(output.toAbsolutePath().getParent());
+                        try (
+                            Stats.Phase phase = Stats.phase("write");
+                            JsonWriter jwriter = new ChunkedJsonWriter(
+                                StandardCharsets.UTF_8.equals(charset)
+                                    ? new Utf8Writer(
+                                        FileChannel.open(
+                                            output,
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING,
+                                            StandardOpenOption.WRITE
+                                        )
+                                    )
+                                    : new OutputStreamWriter(Stats.counting(Files.newOutputStream(output)), charset),
+                                indent,
+                                1
+                            )
+                        ) {
+                            jwriter.write(result);
+                        }
+                        return null;
+                    })
+                );
+            }
+
+            long failed = 0;
+            for (Map.Entry<Path, Future<?>> task : tasks.entrySet()) {
+                try {
+                    task.getValue().get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    errors.println(task.getKey() + ": " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for " + task.getKey());
+                }
+            }
+            if (failed > 0) {
+                errors.println(failed + " of " + tasks.size() + " files failed");
+            }
+            return failed;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Expand command line inputs into a sorted, de-duplicated list of files.
+     *
+     * A directory contributes every {@code *.json} file beneath it, an argument containing
+     * any of {@code *?[{} is matched as a glob against the files under its literal prefix,
+     * and anything else is taken as a file name.
+     */
+    static List<Path> expandInputs(List<String> inputs) throws IOException {
+        Set<Path> files = new TreeSet<>();
+        for (String input : inputs) {
+            Path path = Path.of(input);
+            if (Files.isDirectory(path)) {
+                files.addAll(walk(path, FileSystems.getDefault().getPathMatcher("glob:**.json")));
+            } else if (isGlob(input)) {
+                files.addAll(walk(globBase(path), FileSystems.getDefault().getPathMatcher("glob:" + input)));
+            } else {
+                files.add(path);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    static boolean isGlob(String input) {
+        return input.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0);
+    }
+
+    /**
+     * The directory a glob is matched beneath: its path up to the first segment with a wildcard.
+     */
+    static Path globBase(Path glob) {
+        Path base = Path.of("");
+        for (Path part : glob) {
+            if (isGlob(part.toString())) {
+                break;
+            }
+            base = base.resolve(part);
+        }
+        return glob.isAbsolute() ? glob.getRoot().resolve(base) : base;
+    }
+
+    private static List<Path> walk(Path dir, PathMatcher matcher) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(p -> Files.isRegularFile(p) && matcher.matches(p)).toList();
+        }
+    }
+
+    /**
+     * Map each input to a file of the same name under the output directory. Inputs whose
+     * names clash keep their whole absolute path beneath the output directory instead.
+     */
+    static Map<Path, Path> resolveBatchOutputs(List<Path> inputs, Path outputDir) {
+        Map<Path, Long> names = inputs
+            .stream()
+            .collect(Collectors.groupingBy(Path::getFileName, Collectors.counting()));
+        Map<Path, Path> outputs = new LinkedHashMap<>();
+        for (Path input : inputs) {
+            if (names.get(input.getFileName()) == 1) {
+                outputs.put(input, outputDir.resolve(input.getFileName()));
+            } else {
+                Path absolute = input.toAbsolutePath().normalize();
+                outputs.put(input, outputDir.resolve(absolute.getRoot().relativize(absolute)));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Open a line reader over the given file, or stdin if the path is "-".
+     */
+    private static BufferedReader openLineReader(String inputFile, String charset) throws IOException {
+        InputStream in = STDIN.equals(inputFile) ? System.in : Files.newInputStream(Path.of(inputFile));
+        return new BufferedReader(new InputStreamReader(in, toCharset(charset)), LINE_BUFFER_SIZE);
+    }
+
+    /**
+     * Open a line writer over the given file, or stdout if the path is "-".
+     */
+    private static BufferedWriter openLineWriter(String outputFile, String charset) throws IOException {
+        OutputStream out = STDOUT.equals(outputFile) ? stdout() : Files.newOutputStream(Path.of(outputFile));
+        return new BufferedWriter(new OutputStreamWriter(Stats.counting(out), toCharset(charset)), LINE_BUFFER_SIZE);
+    }
+
+    /**
+     * Standard output wrapped so that closing a writer over it only flushes.
+     */
+    private static OutputStream stdout() {
+        return new FilterOutputStream(System.out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    private static Charset toCharset(String charset) {
+        return UTF8.equalsIgnoreCase(charset) ? StandardCharsets.UTF_8 : Charset.forName(charset);
+    }
+
+    /**
+     * Re-indents the compact JSON text written through it, putting each member and element on its
+     * own line indented by the given number of spaces per level. Empty objects and arrays stay on one line.
+     */
+    static class IndentingWriter extends FilterWriter {
+
+        private final int indent;
+        private int depth;
+        private char open;
+        private boolean string, escaped;
+        private char[] line = { '\n' };
+
+        IndentingWriter(Writer out, int indent) {
+            super(out);
+            this.indent = indent;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (string) {
+                out.write(c);
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    string = false;
+                }
+                return;
+            }
+            if (open != 0) {
+                out.write(open);
+                open = 0;
+                if (c == '}' || c == ']') {
+                    out.write(c);
+                    return;
+                }
+                depth++;
+                newline();
+            }
+            switch (c) {
+                case '{', '[' -> open = (char) c;
+                case '}', ']' -> {
+                    depth--;
+                    newline();
+                    out.write(c);
+                }
+                case ',' -> {
+                    out.write(c);
+                    newline();
+                }
+                case ':' -> out.write(": ");
+                case '"' -> {
+                    string = true;
+                    out.write(c);
+                }
+                default -> out.write(c);
+            }
+        }
+
+        /**
+         * Passes runs of characters that need no indentation straight through.
+         */
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int run = off;
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                boolean plain = string
+                    ? !escaped && c != '\\' && c != '"'
+                    : open == 0 && c != '{' && c != '[' && c != '}' && c != ']' && c != ',' && c != ':' && c != '"';
+                if (!plain) {
+                    out.write(cbuf, run, i - run);
+                    write(c);
+                    run = i + 1;
+                }
+            }
+            out.write(cbuf, run, off + len - run);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        private void newline() throws IOException {
+            int length = 1 + depth * indent;
+            if (line.length < length) {
+                line = new char[Math.max(length, line.length * 2)];
+                Arrays.fill(line, ' ');
+                line[0] = '\n';
+            }
+            out.write(line, 0, length);
+        }
+    }
+
+    /**
+     * Encodes characters straight to UTF-8 in one large buffer that is written to a file channel,
+     * or to stdout, whenever it fills, so output skips the small buffers of a stream encoder.
+     */
+    static class Utf8Writer extends Writer {
+
+        static final int BUFFER_SIZE = 1024 * 1024;
+
+        private final WritableByteChannel channel;
+        private final OutputStream stream;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private int pos;
+        private char high;
+
+        Utf8Writer(WritableByteChannel channel) {
+            this.channel = channel;
+            this.stream = null;
+        }
+
+        Utf8Writer(OutputStream stream) {
+            this.channel = null;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (c < 0x80 && high == 0 && pos < bytes.length) {
+                bytes[pos++] = (byte) c;
+            } else {
+                encode((char) c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                if (pos == bytes.length) {
+                    drain();
+                }
+                int limit = Math.min(end, off + bytes.length - pos);
+                while (off < limit && high == 0 && cbuf[off] < 0x80) {
+                    bytes[pos++] = (byte) cbuf[off++];
+                }
+                if (off < limit) {
+                    encode(cbuf[off++]);
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                if (pos == bytes.length) {
+                    drain();
+                }
+                int limit = Math.min(end, off + bytes.length - pos);
+                char c;
+                while (off < limit && high == 0 && (c = str.charAt(off)) < 0x80) {
+                    bytes[pos++] = (byte) c;
+                    off++;
+                }
+                if (off < limit) {
+                    encode(str.charAt(off++));
+                }
+            }
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) throws IOException {
+            if (csq instanceof String str) {
+                write(str, start, end - start);
+            } else {
+                for (int i = start; i < end; i++) {
+                    write(csq.charAt(i));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Encodes one character, pairing surrogates across calls and replacing unpaired ones with '?'.
+         */
+        private void encode(char c) throws IOException {
+            if (bytes.length - pos < 5) {
+                drain();
+            }
+            if (high != 0) {
+                char h = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(h, c);
+                    bytes[pos++] = (byte) (0xf0 | cp >> 18);
+                    bytes[pos++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                    bytes[pos++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                    bytes[pos++] = (byte) (0x80 | cp & 0x3f);
+                    return;
+                }
+                bytes[pos++] = '?';
+            }
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | c >> 6);
+                bytes[pos++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c)) {
+                high = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | c >> 12);
+                bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[pos++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+
+        private void drain() throws IOException {
+            if (pos == 0) {
+                return;
+            }
+            if (channel != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, pos);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else {
+                stream.write(bytes, 0, pos);
+            }
+            Stats.count("outputBytes", pos);
+            pos = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (high != 0) {
+                high = 0;
+                write('?');
+            }
+            drain();
+            if (channel != null) {
+                channel.close();
+            } else {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * A JsonWriter for values that hold a large array: arrays of four or more chunks, at any depth,
+     * are encoded in chunks on a pool and the chunks written back in order, laid out exactly as
+     * {@link IndentingWriter} lays out compact JSON. Any other value, and every value when there is
+     * only one worker, is written by Parsson through an IndentingWriter as before.
+     */
+    static class ChunkedJsonWriter implements JsonWriter {
+
+        static final int CHUNK_SIZE = 1024;
+
+        private static final String BLANKS = " ".repeat(64);
+
+        private static final JsonWriterFactory WRITERS = Json.createWriterFactory(null);
+
+        private final Writer out;
+        private final int indent, parallelism, chunkSize;
+        private ForkJoinPool pool;
+        private boolean written;
+
+        ChunkedJsonWriter(Writer out, int indent, int parallelism) {
+            this(out, indent, parallelism, CHUNK_SIZE);
+        }
+
+        ChunkedJsonWriter(Writer out, int indent, int parallelism, int chunkSize) {
+            this.out = out;
+            this.indent = indent;
+            this.parallelism = parallelism;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void writeArray(JsonArray array) {
+            write((JsonValue) array);
+        }
+
+        @Override
+        public void writeObject(JsonObject object) {
+            write((JsonValue) object);
+        }
+
+        @Override
+        public void write(JsonStructure value) {
+            write((JsonValue) value);
+        }
+
+        @Override
+        public void write(JsonValue value) {
+            if (written) {
+                throw new IllegalStateException("JsonWriter has already written a value");
+            }
+            written = true;
+            try {
+                if (parallelism > 1 && chunked(value)) {
+                    encode(value, indent, 0, out, this);
+                } else {
+                    Writer text = indent > 0 ? new IndentingWriter(out, indent) : out;
+                    WRITERS.createWriter(text).write(value);
+                    text.flush();
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new JsonException("I/O error writing JSON", e);
+            } finally {
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new JsonException("I/O error closing JSON output", e);
+            }
+        }
+
+        /**
+         * Whether the value holds an array of four or more chunks, at any depth.
+         */
+        private boolean chunked(JsonValue value) {
+            Collection<JsonValue> children = switch (value.getValueType()) {
+                case ARRAY -> value.asJsonArray();
+                case OBJECT -> value.asJsonObject().values();
+                default -> List.of();
+            };
+            if (value.getValueType() == JsonValue.ValueType.ARRAY && children.size() >= 4 * chunkSize) {
+                return true;
+            }
+            for (JsonValue child : children) {
+                if (child instanceof JsonStructure && chunked(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Keeps at most two chunks per worker in flight so memory stays bounded by the window.
+         */
+        private void writeChunks(JsonArray array, int depth) throws IOException {
+            if (pool == null) {
+                pool = new ForkJoinPool(parallelism);
+            }
+            try {
+                ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+                boolean first = true;
+                out.write('[');
+                for (int from = 0; from < array.size() || !pending.isEmpty(); from += chunkSize) {
+                    if (from < array.size()) {
+                        int start = from, end = Math.min(array.size(), from + chunkSize);
+                        pending.add(pool.submit(() -> chunk(array, start, end, depth + 1)));
+                    }
+                    if (pending.size() >= 2 * parallelism || from + chunkSize >= array.size()) {
+                        if (!first) {
+                            out.write(',');
+                        }
+                        first = false;
+                        out.write(pending.poll().get());
+                    }
+                }
+                newline(indent, depth, out);
+                out.write(']');
+            } catch (ExecutionException e) {
+                throw new JsonException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted writing JSON");
+            }
+        }
+
+        private String chunk(JsonArray array, int from, int to, int depth) throws IOException {
+            StringBuilder text = new StringBuilder();
+            for (int i = from; i < to; i++) {
+                if (i > from) {
+                    text.append(',');
+                }
+                newline(indent, depth, text);
+                encode(array.get(i), indent, depth, text, null);
+            }
+            return text.toString();
+        }
+
+        /**
+         * Append a value as JSON text, indenting nested members when indent is positive and handing
+         * arrays of four or more chunks, at any depth, to the given writer to encode in parallel.
+         */
+        static void encode(JsonValue value, int indent, int depth, Appendable out, ChunkedJsonWriter chunks)
+            throws IOException {
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    JsonObject object = value.asJsonObject();
+                    if (object.isEmpty()) {
+                        out.append("{}");
+                        return;
+                    }
+                    out.append('{');
+                    boolean first = true;
+                    for (Map.Entry<String, JsonValue> member : object.entrySet()) {
+                        if (!first) {
+                            out.append(',');
+                        }
+                        first = false;
+                        newline(indent, depth + 1, out);
+                        string(member.getKey(), out);
+                        out.append(indent > 0 ? ": " : ":");
+                        encode(member.getValue(), indent, depth + 1, out, chunks);
+                    }
+                    newline(indent, depth, out);
+                    out.append('}');
+                }
+                case ARRAY -> {
+                    JsonArray array = value.asJsonArray();
+                    if (array.isEmpty()) {
+                        out.append("[]");
+                        return;
+                    }
+                    if (chunks != null && array.size() >= 4 * chunks.chunkSize) {
+                        chunks.writeChunks(array, depth);
+                        return;
+                    }
+                    out.append('[');
+                    for (int i = 0; i < array.size(); i++) {
+                        if (i > 0) {
+                            out.append(',');
+                        }
+                        newline(indent, depth + 1, out);
+                        encode(array.get(i), indent, depth + 1, out, chunks);
+                    }
+                    newline(indent, depth, out);
+                    out.append(']');
+                }
+                case STRING -> string(((JsonString) value).getString(), out);
+                default -> out.append(value.toString());
+            }
+        }
+
+        /**
+         * Append a quoted string, escaping quotes, backslashes and control characters as Parsson does.
+         */
+        private static void string(String s, Appendable out) throws IOException {
+            out.append('"');
+            int run = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    out.append(s, run, i);
+                    switch (c) {
+                        case '"' -> out.append("\\\"");
+                        case '\\' -> out.append("\\\\");
+                        case '\b' -> out.append("\\b");
+                        case '\f' -> out.append("\\f");
+                        case '\n' -> out.append("\\n");
+                        case '\r' -> out.append("\\r");
+                        case '\t' -> out.append("\\t");
+                        default -> out.append("\\u00").append(HEX.charAt(c >> 4)).append(HEX.charAt(c & 0xf));
+                    }
+                    run = i + 1;
+                }
+            }
+            out.append(s, run, s.length()).append('"');
+        }
+
+        private static final String HEX = "0123456789abcdef";
+
+        private static void newline(int indent, int depth, Appendable out) throws IOException {
+            if (indent > 0) {
+                out.append('\n');
+                for (int n = indent * depth; n > 0; n -= BLANKS.length()) {
+                    out.append(BLANKS, 0, Math.min(n, BLANKS.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes results element by element as a template produces them, either as the elements of
+     * one top-level array or as JSON Lines, so only one element is ever held in memory.
+     */
+    static class ResultStream implements Consumer<JsonValue>, AutoCloseable {
+
+        private final JsonGenerator generator;
+        private final Writer lines;
+        private final JsonWriterFactory compact;
+        private long count;
+
+        ResultStream(String outputFile, String spaces, boolean ndjson) throws IOException {
+            if (ndjson) {
+                Map<String, Object> config = new HashMap<>();
+                config.put("spaces", 0);
+                this.compact = Json.createWriterFactory(config);
+                this.lines = openLineWriter(outputFile, UTF8);
+                this.generator = null;
+            } else {
+                this.compact = null;
+                this.lines = null;
+                this.generator = createJsonGenerator(outputFile, spaces).writeStartArray();
+            }
+        }
+
+        @Override
+        public void accept(JsonValue value) {
+            Stats.record(++count);
+            Stats.count("records", 1);
+            try (Stats.Phase phase = Stats.phase("write")) {
+                if (generator != null) {
+                    generator.write(value);
+                    return;
+                }
+                StringWriter buffer = new StringWriter();
+                compact.createWriter(buffer).write(value);
+                lines.write(buffer.toString().strip());
+                lines.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            Stats.record(0);
+            if (generator != null) {
+                generator.writeEnd().close();
+            } else {
+                lines.close();
+            }
+        }
+    }
+
+    /**
+     * Build a GraalsonSource that reads JSON from standard input.
+     *
+     * Piped UTF-8 input is read straight into direct buffers and handed to the JSON reader as
+     * bytes; other charsets and interactive consoles go through a decoding reader.
+     */
+    private static Source readStdinSource(String charset) throws IOException {
+        if (System.console() == null && UTF8.equalsIgnoreCase(charset)) {
+            return new GraalsonSource(Json.createReader(JsonBytes.read(System.in).newInputStream()));
+        }
+        Reader reader;
+        if (System.console() != null) {
+            reader = new InputStreamReader(System.in, toCharset(charset));
+        } else {
+            ReadableByteChannel channel = Channels.newChannel(System.in);
+            reader = new InputStreamReader(Channels.newInputStream(channel), toCharset(charset));
+        }
+        JsonReader jreader = Json.createReader(reader);
+        return new GraalsonSource(jreader);
+    }
+
+    /**
+     * Read the raw bytes of the input file, or stdin if the path is "-", transcoded to UTF-8 if necessary.
+     */
+    private static JsonBytes readBytes(String inputJson, String charset) throws IOException {
+        try (Stats.Phase phase = Stats.phase("read")) {
+            JsonBytes bytes = STDIN.equals(inputJson) ? JsonBytes.read(System.in) : JsonBytes.map(Path.of(inputJson));
+            Stats.count("inputBytes", bytes.length());
+            if (!UTF8.equalsIgnoreCase(charset)) {
+                String text = new String(bytes.newInputStream().readAllBytes(), toCharset(charset));
+                bytes = JsonBytes.wrap(text.getBytes(StandardCharsets.UTF_8));
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Parse the input file, or stdin if the path is "-", projected onto the comma separated JSON
+     * Pointers of --select when there are any. Unselected values are skipped without being decoded.
+     */
+    private static JsonStructure readStructure(String inputJson, String charset, Format format, String select)
+        throws IOException {
+        if (select == null) {
+            return readStructure(inputJson, charset, format);
+        }
+        if (format != Format.JSON) {
+            System.err.println("--select scans text JSON, convert " + inputJson + " first");
+            System.exit(1);
+        }
+        JsonBytes bytes = readBytes(inputJson, charset);
+        try (Stats.Phase phase = Stats.phase("parse")) {
+            return structure(new LazyJson(bytes).select(Arrays.asList(select.split(","))), inputJson);
+        }
+    }
+
+    /**
+     * Parse the input file, or stdin if the path is "-", in the given format.
+     */
+    private static JsonStructure readStructure(String inputJson, String charset, Format format) throws IOException {
+        if (format == Format.JSON || (!STDIN.equals(inputJson) && format == Format.of(Path.of(inputJson)))) {
+            return readStructure(inputJson, charset);
+        }
+        try (
+            Stats.Phase phase = Stats.phase("parse");
+            InputStream in = STDIN.equals(inputJson) ? System.in : JsonBytes.map(Path.of(inputJson)).newInputStream()
+        ) {
+            return structure(format.read(in), inputJson);
+        }
+    }
+
+    /**
+     * Parse the input file, or stdin if the path is "-". Missing files are looked up on the classpath.
+     * Files named {@code *.cbor}, {@code *.msgpack} or {@code *.mpk} are decoded from that format.
+     */
+    private static JsonStructure readStructure(String inputJson, String charset) throws IOException {
+        try (Stats.Phase phase = Stats.phase("parse")) {
+            if (!STDIN.equals(inputJson)) {
+                Path path = Path.of(inputJson);
+                if (!Files.exists(path)) {
+                    return readJson(new StringReader(readText(path)));
+                }
+                return readJson(path, toCharset(charset));
+            }
+            if (UTF8.equalsIgnoreCase(charset)) {
+                JsonBytes bytes = JsonBytes.read(System.in);
+                Stats.count("inputBytes", bytes.length());
+                try (JsonReader reader = Json.createReader(bytes.newInputStream())) {
+                    return reader.read();
+                }
+            }
+            return readJson(new InputStreamReader(System.in, toCharset(charset)));
+        }
+    }
+
+    /**
+     * Build a GraalsonSource for a JSON file. Existing UTF-8 files are memory mapped and read as
+     * bytes; anything else, including classpath resources, is left to GraalsonSource.
+     */
+    private static Source readFileSource(String inputFile, String charset) throws IOException {
+        Path path = Path.of(inputFile);
+        if (UTF8.equalsIgnoreCase(charset) && Files.isRegularFile(path)) {
+            return new GraalsonSource(Json.createReader(JsonBytes.map(path).newInputStream()));
+        }
+        return new GraalsonSource(path);
+    }
+
+    /**
+     * Per phase timing for --stats, and a JFR event for every phase.
+     *
+     * Phases are timed with try-with-resources around the work, e.g. parsing, compiling a
+     * template's context, evaluating it, converting its result and writing. When enabled, each
+     * phase adds its wall time and the CPU time and bytes allocated by its thread to the totals
+     * reported at the end of the run. Whether or not stats are enabled, each phase is also a
+     * {@code jsont.Phase} JFR event, so a recording shows the breakdown per invocation and, in
+     * the lines, batch, stream and replay modes, per record.
+     */
+    public static final class Stats {
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        private static final ThreadLocal<long[]> RECORD = ThreadLocal.withInitial(() -> new long[1]);
+        private static final Map<String, long[]> PHASES = new LinkedHashMap<>();
+        private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+        private static volatile boolean enabled;
+        private static long started;
+
+        private Stats() {}
+
+        @Name("jsont.Phase")
+        @Label("Phase")
+        @Category("JsonT")
+        @Description("One phase of a jsont run, such as parsing, evaluating a template or writing")
+        static class PhaseEvent extends Event {
+
+            @Label("Phase")
+            String phase;
+
+            @Label("Record")
+            @Description("The 1 based line, file, element or patch, or 0 outside the per record modes")
+            long record;
+        }
+
+        /**
+         * A timed phase, ended by closing it. Opened in a try-with-resources statement around the work
+         * it times, where the variable goes unused; JsonT suppresses the {@code [try]} lint for that.
+         */
+        public static final class Phase implements AutoCloseable {
+
+            private final PhaseEvent event = new PhaseEvent();
+            private final long wall, cpu, allocated;
+
+            private Phase(String name) {
+                event.phase = name;
+                event.record = RECORD.get()[0];
+                event.begin();
+                if (enabled) {
+                    wall = System.nanoTime();
+                    cpu = cpuTime();
+                    allocated = allocatedBytes();
+                } else {
+                    wall = cpu = allocated = 0;
+                }
+            }
+
+            @Override
+            public void close() {
+                event.commit();
+                if (enabled) {
+                    long[] deltas = { 1, System.nanoTime() - wall, cpuTime() - cpu, allocatedBytes() - allocated };
+                    synchronized (PHASES) {
+                        long[] totals = PHASES.computeIfAbsent(event.phase, name -> new long[4]);
+                        for (int i = 0; i < totals.length; i++) {
+                            totals[i] += deltas[i];
+                        }
+                    }
+                }
+            }
+        }
+
+        public static void enable() {
+            started = System.nanoTime();
+            enabled = true;
+        }
+
+        public static boolean isEnabled() {
+            return enabled;
+        }
+
+        public static Phase phase(String name) {
+            return new Phase(name);
+        }
+
+        /**
+         * Attribute the phases that follow on this thread to a record, 0 for none.
+         */
+        public static void record(long record) {
+            RECORD.get()[0] = record;
+        }
+
+        /**
+         * Add to a counter such as {@code inputBytes}, {@code outputBytes} or {@code records}.
+         */
+        public static void count(String counter, long n) {
+            if (enabled) {
+                COUNTERS.computeIfAbsent(counter, name -> new LongAdder()).add(n);
+            }
+        }
+
+        /**
+         * Count the bytes written to a stream as {@code outputBytes}.
+         */
+        static OutputStream counting(OutputStream out) {
+            if (!enabled) {
+                return out;
+            }
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    count("outputBytes", 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    count("outputBytes", len);
+                }
+            };
+        }
+
+        /**
+         * Print the totals as an aligned table, or as one JSON object.
+         */
+        public static void report(PrintStream out, boolean json) {
+            long total = System.nanoTime() - started;
+            Map<String, long[]> phases;
+            synchronized (PHASES) {
+                phases = new LinkedHashMap<>(PHASES);
+            }
+            if (json) {
+                JsonObjectBuilder report = Json.createObjectBuilder().add("wallNanos", total);
+                JsonObjectBuilder phaseReport = Json.createObjectBuilder();
+                phases.forEach((name, totals) ->
+                    phaseReport.add(
+                        name,
+                        Json.createObjectBuilder()
+                            .add("count", totals[0])
+                            .add("wallNanos", totals[1])
+                            .add("cpuNanos", totals[2])
+                            .add("allocatedBytes", totals[3])
+                    )
+                );
+                JsonObjectBuilder counters = Json.createObjectBuilder();
+                new TreeMap<>(COUNTERS).forEach((name, value) -> counters.add(name, value.sum()));
+                out.println(report.add("phases", phaseReport).add("counters", counters).build());
+                return;
+            }
+            out.printf("%-12s %10s %12s %12s %14s%n", "phase", "count", "wall ms", "cpu ms", "allocated MB");
+            phases.forEach((name, totals) ->
+                out.printf(
+                    "%-12s %10d %12.3f %12.3f %14.3f%n",
+                    name,
+                    totals[0],
+                    totals[1] / 1e6,
+                    totals[2] / 1e6,
+                    totals[3] / (double) (1 << 20)
+                )
+            );
+            out.printf("%-12s %10s %12.3f%n", "total", "", total / 1e6);
+            new TreeMap<>(COUNTERS).forEach((name, value) -> out.printf("%-12s %10d%n", name, value.sum()));
+        }
+
+        /**
+         * Clear the totals, for runs in a long lived process.
+         */
+        public static void reset() {
+            synchronized (PHASES) {
+                PHASES.clear();
+            }
+            COUNTERS.clear();
+            started = System.nanoTime();
+        }
+
+        private static long cpuTime() {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? Math.max(0, THREADS.getCurrentThreadCpuTime()) : 0;
+        }
+
+        private static long allocatedBytes() {
+            return THREADS instanceof com.sun.management.ThreadMXBean sun
+                ? Math.max(0, sun.getCurrentThreadAllocatedBytes())
+                : 0;
+        }
+    }
+
+    /**
+     * Embeddable, thread-safe entry point for running templates and operations from Java.
+     *
+     * One polyglot engine is shared by every template compiled here, so parsed and compiled
+     * code is reused across contexts. Each compiled template keeps a bounded pool of JS
+     * contexts; callers borrow a context for the duration of one transform, and block when
+     * the pool is exhausted rather than creating more. Contexts get no access to the host beyond
+     * the bound input and {@code emit}: templates cannot look up Java classes, read files or start
+     * processes.
+     *
+     * <pre>
+     * try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine()) {
+     *     JsonT.CompiledTemplate template = engine.compile(Path.of("template.js"));
+     *     JsonValue result = template.transform(input); // from any thread
+     * }
+     * </pre>
+     */
+    public static class TemplateEngine implements AutoCloseable {
+
+        private final Engine engine;
+        private final int poolSize;
+        private boolean cached;
+        private final Set<CompiledTemplate> templates = ConcurrentHashMap.newKeySet();
+        private final Map<Path, CompiledTemplate> compiled = new ConcurrentHashMap<>();
+
+        public TemplateEngine() {
+            this(Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * @param poolSize the maximum number of JS contexts kept per compiled template
+         */
+        public TemplateEngine(int poolSize) {
+            this(poolSize, null);
+        }
+
+        /**
+         * @param poolSize  the maximum number of JS contexts kept per compiled template
+         * @param cacheFile where the engine loads its compiled code from, or stores it on close
+         *                  when the file does not exist yet; ignored when null or when the polyglot
+         *                  runtime has no persistent code cache
+         */
+        public TemplateEngine(int poolSize, Path cacheFile) {
+            if (poolSize < 1) {
+                throw new IllegalArgumentException("poolSize must be at least 1: " + poolSize);
+            }
+            this.poolSize = poolSize;
+            Engine engine = newEngine(null, null);
+            if (cacheFile != null && engine.getOptions().get(CompilationCache.STORE) != null) {
+                engine.close();
+                engine = null;
+                if (Files.exists(cacheFile)) {
+                    try {
+                        engine = newEngine(CompilationCache.LOAD, cacheFile.toString());
+                    } catch (IllegalArgumentException | PolyglotException e) {
+                        // written by another runtime version or truncated; store it again
+                        System.err.println("cache: discarding " + cacheFile + ": " + e.getMessage());
+                        try {
+                            Files.deleteIfExists(cacheFile);
+                        } catch (IOException ignored) {}
+                    }
+                }
+                if (engine == null) {
+                    engine = newEngine(CompilationCache.STORE, cacheFile.toString());
+                }
+                this.cached = true;
+            }
+            this.engine = engine;
+        }
+
+        private static Engine newEngine(String option, String value) {
+            Engine.Builder builder = Engine.newBuilder("js").option("engine.WarnInterpreterOnly", "false");
+            return option == null ? builder.build() : builder.option(option, value).build();
+        }
+
+        /**
+         * Compile a template from a file, falling back to a classpath resource of the same name.
+         */
+        public CompiledTemplate compile(Path templateFile) throws IOException {
+            return compile(templateFile.toString(), readText(templateFile));
+        }
+
+        /**
+         * The template compiled from a file, compiling it on first use and reusing it afterwards.
+         */
+        public CompiledTemplate template(Path templateFile) throws IOException {
+            try {
+                return compiled.computeIfAbsent(templateFile.toAbsolutePath().normalize(), path -> {
+                    try {
+                        return compile(templateFile);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Compile template source text. The name is used in error messages and stack traces.
+         */
+        public CompiledTemplate compile(String name, String script) {
+            CompiledTemplate template = new CompiledTemplate(this, name, script);
+            templates.add(template);
+            return template;
+        }
+
+        /**
+         * Run one of the structured operations. Operations need no JS context and are safe to call concurrently.
+         */
+        public JsonValue operate(Operation operation, JsonStructure operand1, JsonStructure operand2) {
+            return operation.apply(operand1, operand2);
+        }
+
+        public JsonValue operate(Operation operation, Reader operand1, Reader operand2) {
+            return operate(operation, readJson(operand1), readJson(operand2));
+        }
+
+        public JsonValue operate(Operation operation, Path operand1, Path operand2) throws IOException {
+            return operate(operation, readJson(operand1), readJson(operand2));
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /**
+         * Whether compiled code is loaded from and stored to a {@link CompilationCache} file.
+         */
+        public boolean isCached() {
+            return cached;
+        }
+
+        Engine getEngine() {
+            return engine;
+        }
+
+        /**
+         * Drop a closed template, so recompiling under --watch or serve does not keep every old one.
+         */
+        void forget(CompiledTemplate template) {
+            templates.remove(template);
+            compiled.values().remove(template);
+        }
+
+        @Override
+        public void close() {
+            templates.forEach(CompiledTemplate::close);
+            templates.clear();
+            compiled.clear();
+            engine.close();
+        }
+    }
+
+    /**
+     * A directory of persisted polyglot code caches, one per template, so repeated runs of the
+     * same template start from compiled code instead of warming up in the interpreter again.
+     *
+     * Entries are named by a hash of the template and the runtime that compiled it, so an edited
+     * template or an upgraded runtime gets a fresh entry. Loading an entry marks it recently used,
+     * and {@link #evict()} deletes the least recently used entries beyond the size limit.
+     *
+     * Persisting code needs a polyglot runtime with the {@value #STORE} and {@value #LOAD}
+     * engine options (Oracle GraalVM). On other runtimes the first run leaves a marker so later
+     * runs skip the cache without building an extra engine to find out.
+     */
+    public static class CompilationCache {
+
+        static final String STORE = "engine.CacheStore", LOAD = "engine.CacheLoad";
+
+        public static final long DEFAULT_MAX_BYTES = 512L << 20;
+
+        private final Path dir;
+        private final long maxBytes;
+        private final String runtime;
+
+        public CompilationCache(Path dir, long maxBytes) {
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+            this.runtime = Runtime.version() + " " + Engine.class.getProtectionDomain().getCodeSource();
+        }
+
+        /**
+         * {@code $XDG_CACHE_HOME/jsont}, or {@code ~/.cache/jsont}.
+         */
+        public static Path defaultDir() {
+            String xdg = System.getenv("XDG_CACHE_HOME");
+            Path base = xdg == null || xdg.isBlank() ? Path.of(System.getProperty("user.home"), ".cache") : Path.of(xdg);
+            return base.resolve("jsont");
+        }
+
+        /**
+         * Parse a size in bytes with an optional k, m or g suffix.
+         */
+        public static long parseSize(String size) {
+            String value = size.strip().toLowerCase();
+            int shift = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+                case 'k' -> 10;
+                case 'm' -> 20;
+                case 'g' -> 30;
+                default -> 0;
+            };
+            return Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+        }
+
+        /**
+         * The cache file for a template.
+         */
+        public Path entry(String script) {
+            return dir.resolve(sha256(runtime + "\n" + script) + ".image");
+        }
+
+        /**
+         * False once a run has found the polyglot runtime cannot persist compiled code.
+         */
+        public boolean isSupported() {
+            return !Files.exists(marker());
+        }
+
+        /**
+         * An engine that loads the template's cached code, or stores it when the engine is closed.
+         */
+        public TemplateEngine engine(int poolSize, String script) {
+            Path entry = entry(script);
+            try {
+                Files.createDirectories(dir);
+                if (Files.exists(entry)) {
+                    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                }
+            } catch (IOException e) {
+                System.err.println("cache: " + e.getMessage());
+                return new TemplateEngine(poolSize);
+            }
+            TemplateEngine engine = new TemplateEngine(poolSize, entry);
+            if (!engine.isCached()) {
+                try {
+                    Files.writeString(marker(), runtime);
+                } catch (IOException e) {
+                    System.err.println("cache: " + e.getMessage());
+                }
+            }
+            return engine;
+        }
+
+        /**
+         * Delete the least recently used entries until the cache fits its size limit.
+         *
+         * @return the number of entries deleted
+         */
+        public int evict() throws IOException {
+            return evict(dir, ".image", maxBytes);
+        }
+
+        /**
+         * Delete the least recently modified files with the given suffix until they fit in maxBytes.
+         */
+        static int evict(Path dir, String suffix, long maxBytes) throws IOException {
+            if (!Files.isDirectory(dir)) {
+                return 0;
+            }
+            List<Path> entries;
+            try (Stream<Path> files = Files.list(dir)) {
+                entries = files.filter(file -> file.toString().endsWith(suffix)).collect(Collectors.toList());
+            }
+            Map<Path, FileTime> used = new HashMap<>();
+            for (Path entry : entries) {
+                try {
+                    used.put(entry, Files.getLastModifiedTime(entry));
+                } catch (NoSuchFileException e) {
+                    // evicted by another process sharing the cache
+                    used.put(entry, FileTime.fromMillis(0));
+                }
+            }
+            entries.sort((a, b) -> used.get(b).compareTo(used.get(a)));
+            long total = 0;
+            int deleted = 0;
+            for (Path entry : entries) {
+                total += Files.exists(entry) ? Files.size(entry) : 0;
+                if (total > maxBytes && Files.deleteIfExists(entry)) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+
+        private Path marker() {
+            return dir.resolve(sha256(runtime) + ".unsupported");
+        }
+
+        static String sha256(String text) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Results of earlier runs, stored under a hash of everything that determines them.
+     *
+     * The key covers the mode or operation, the bytes of the template and of every input (and of
+     * any file named by an option, such as a --reduce template), the output charset and spaces and
+     * the other options. A hit copies the stored result to the destination with
+     * {@link FileChannel#transferTo}, which the OS can do without passing the bytes through the JVM,
+     * and never starts a JS context. A miss runs as usual into a temporary file in the cache
+     * directory that is then renamed into place, so processes sharing the cache never see a partial
+     * entry, and two that race on the same key just replace a result with an identical one.
+     *
+     * Entries are evicted least recently used first once the cache outgrows its size limit. Hits
+     * and misses are counted in a file that every process using the cache updates under a lock.
+     * Inputs read from stdin are not cached.
+     */
+    public static class ResultCache {
+
+        public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+        /** Options that change how a run goes but not what it writes. */
+        static final Set<String> IGNORED = Set.of(
+            STATS_OPTION,
+            PARALLELISM_OPTION,
+            COMPILE_CACHE_OPTION,
+            CACHE_SIZE_OPTION,
+            RESULT_CACHE_OPTION
+        );
+
+        private static final String SUFFIX = ".result";
+
+        /**
+         * Work that writes its result to the given file, or stdout if the path is "-".
+         */
+        @FunctionalInterface
+        public interface Job {
+            void run(String outputFile) throws IOException, TransformerException;
+        }
+
+        private final Path dir;
+        private final long maxBytes;
+
+        public ResultCache(Path dir, long maxBytes) {
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * {@code results} under {@link CompilationCache#defaultDir()}.
+         */
+        public static Path defaultDir() {
+            return CompilationCache.defaultDir().resolve("results");
+        }
+
+        /**
+         * The key for a run, or null when an input is stdin or cannot be read.
+         *
+         * @param settings the mode and any positional settings, such as charset and spaces
+         * @param files the template and input files, in order
+         */
+        public String key(Map<String, String> options, List<String> settings, List<String> files) throws IOException {
+            StringBuilder key = new StringBuilder("jsont result 1\n");
+            settings.forEach(setting -> key.append(setting).append('\n'));
+            for (String file : files) {
+                String hash = hash(file);
+                if (hash == null) {
+                    return null;
+                }
+                key.append(hash).append('\n');
+            }
+            for (Map.Entry<String, String> option : new TreeMap<>(options).entrySet()) {
+                if (IGNORED.contains(option.getKey())) {
+                    continue;
+                }
+                key.append(OPTION_PREFIX).append(option.getKey()).append('=').append(option.getValue()).append('\n');
+                if (!option.getValue().isEmpty() && Files.isRegularFile(Path.of(option.getValue()))) {
+                    key.append(hash(option.getValue())).append('\n');
+                }
+            }
+            return CompilationCache.sha256(key.toString());
+        }
+
+        /**
+         * Copy the stored result for the key to the output file, or run the job and store what it writes.
+         *
+         * @return whether the result was stored already
+         */
+        public boolean run(String key, String outputFile, Job job) throws IOException, TransformerException {
+            Path entry = dir.resolve(key + SUFFIX);
+            long size = copy(entry, outputFile);
+            if (size >= 0) {
+                Stats.count("outputBytes", size);
+                try {
+                    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                } catch (NoSuchFileException e) {
+                    // evicted by another process since it was copied
+                }
+                count(0);
+                return true;
+            }
+            count(1);
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            try {
+                job.run(temp.toString());
+                copy(temp, outputFile);
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            try {
+                CompilationCache.evict(dir, SUFFIX, maxBytes);
+            } catch (IOException e) {
+                System.err.println("result cache: " + e.getMessage());
+            }
+            return false;
+        }
+
+        /**
+         * The hits and misses counted by every process using the cache.
+         */
+        public long[] counters() throws IOException {
+            Path file = dir.resolve("counters");
+            if (!Files.exists(file)) {
+                return new long[2];
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ); FileLock lock = channel.lock(0, 16, true)) {
+                ByteBuffer counts = ByteBuffer.allocate(16);
+                channel.read(counts, 0);
+                return new long[] { counts.getLong(0), counts.getLong(8) };
+            }
+        }
+
+        private void count(int counter) throws IOException {
+            Stats.count(counter == 0 ? "resultCacheHits" : "resultCacheMisses", 1);
+            Files.createDirectories(dir);
+            try (
+                FileChannel channel = FileChannel.open(
+                    dir.resolve("counters"),
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE
+                );
+                FileLock lock = channel.lock()
+            ) {
+                ByteBuffer counts = ByteBuffer.allocate(16);
+                channel.read(counts, 0);
+                counts.putLong(counter * 8, counts.getLong(counter * 8) + 1).clear();
+                channel.write(counts, 0);
+            }
+        }
+
+        /**
+         * Copy a file to the output file, or stdout if the path is "-".
+         *
+         * @return the number of bytes copied, or -1 when the file does not exist
+         */
+        private static long copy(Path from, String outputFile) throws IOException {
+            FileChannel in;
+            try {
+                in = FileChannel.open(from, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return -1;
+            }
+            try (
+                in;
+                Stats.Phase phase = Stats.phase("write");
+                WritableByteChannel out = STDOUT.equals(outputFile)
+                    ? Channels.newChannel(stdout())
+                    : FileChannel.open(
+                        Path.of(outputFile),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING
+                    )
+            ) {
+                long size = in.size();
+                for (long pos = 0; pos < size; ) {
+                    pos += in.transferTo(pos, size - pos, out);
+                }
+                return size;
+            }
+        }
+
+        /**
+         * The SHA-256 of a file's bytes, or of a template found on the classpath or embedded, or
+         * null for stdin or a missing file.
+         */
+        private static String hash(String file) throws IOException {
+            if (STDIN.equals(file)) {
+                return null;
+            }
+            Path path = Path.of(file);
+            if (!Files.isRegularFile(path)) {
+                try {
+                    return CompilationCache.sha256(readText(path));
+                } catch (NoSuchFileException e) {
+                    return null;
+                }
+            }
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            try (Stats.Phase phase = Stats.phase("hash"); FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(LINE_BUFFER_SIZE);
+                while (channel.read(buffer) >= 0) {
+                    digest.update(buffer.flip());
+                    buffer.clear();
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+
+    /**
+     * A template compiled once and reusable from many threads.
+     *
+     * The template body is wrapped in a function taking {@code _} and {@code emit} and returning
+     * {@code $}, so top level declarations such as {@code const hits} are scoped to one call and
+     * the same context can run the template again. Each pooled context evaluates the wrapper
+     * once and keeps the resulting function.
+     *
+     * Templates can produce output incrementally, either by calling {@code emit(value)} or by
+     * assigning an iterable such as a generator to {@code $}. The streaming {@code transform}
+     * overloads pass each element to a sink as soon as it is produced. The document overloads
+     * collect emitted elements into an array, and otherwise return {@code $} as it is.
+     *
+     * JSON-P input is bound as proxies over the objects and arrays, converted as the template reads
+     * them, and results are converted by walking the returned values, so a document passed from
+     * one template to the next is never written out as JSON text and parsed again. A part of the
+     * input returned unchanged is the same JsonValue that went in.
+     */
+    public static class CompiledTemplate implements AutoCloseable {
+
+        private static final String PREFIX = "(function(_, emit) { var $; ", SUFFIX = "\n; return $; })";
+
+        /** Resolved once; Json.createXxx looks the provider up again on every call. */
+        private static final JsonProvider JSON = JsonProvider.provider();
+
+        private final TemplateEngine owner;
+        private final org.graalvm.polyglot.Source source;
+        private final BlockingQueue<PooledContext> idle;
+        private final AtomicInteger created = new AtomicInteger();
+        private volatile boolean closed;
+
+        CompiledTemplate(TemplateEngine owner, String name, String script) {
+            this.owner = owner;
+            this.source = org.graalvm.polyglot.Source.newBuilder("js", PREFIX + script + SUFFIX, name)
+                .cached(true)
+                .buildLiteral();
+            this.idle = new ArrayBlockingQueue<>(owner.getPoolSize());
+        }
+
+        public String getName() {
+            return source.getName();
+        }
+
+        public JsonValue transform(JsonStructure input) throws TransformerException {
+            return document(pooled -> toJs(input, null));
+        }
+
+        /**
+         * Transform any value, such as the scalar result of an earlier template, bound as {@code _}.
+         */
+        public JsonValue transform(JsonValue input) throws TransformerException {
+            return document(pooled -> toJs(input, null));
+        }
+
+        /**
+         * Transform a document bound lazily, so only the parts the template reads are decoded.
+         */
+        public JsonValue transform(LazyJson input) throws TransformerException {
+            return document(pooled -> root(pooled, input));
+        }
+
+        public JsonValue transform(Reader input) throws TransformerException {
+            return transform(readJson(input));
+        }
+
+        /**
+         * Transform JSON text, parsed by {@code JSON.parse} in the template's own context.
+         */
+        JsonValue transformJson(String json) throws TransformerException {
+            Stats.count("jsonText", 1);
+            return document(pooled -> pooled.parse.execute(json));
+        }
+
+        public JsonValue transform(Path input) throws IOException, TransformerException {
+            return transform(readJson(input));
+        }
+
+        /**
+         * Transform and write the result to the given writer, which is left open.
+         */
+        public void transform(JsonStructure input, JsonWriter output) throws TransformerException {
+            output.write(transform(input));
+        }
+
+        /**
+         * Transform, passing each element to the sink as it is produced: every value given to
+         * {@code emit()}, then each element of {@code $} when it is iterable, or {@code $} itself
+         * when it is defined but not iterable.
+         *
+         * @return the number of elements passed to the sink
+         */
+        public long transform(JsonStructure input, Consumer<JsonValue> sink) throws TransformerException {
+            return stream(pooled -> toJs(input, null), sink);
+        }
+
+        public long transform(LazyJson input, Consumer<JsonValue> sink) throws TransformerException {
+            return stream(pooled -> root(pooled, input), sink);
+        }
+
+        /**
+         * Read the root inside the context, where a typed array bound as the root is created.
+         */
+        private static Object root(PooledContext pooled, LazyJson input) {
+            pooled.context.enter();
+            try {
+                return input.root();
+            } finally {
+                pooled.context.leave();
+            }
+        }
+
+        private JsonValue document(Function<PooledContext, Object> input) throws TransformerException {
+            List<JsonValue> emitted = new ArrayList<>();
+            return execute(input, emitted::add, (pooled, output) -> {
+                try (Stats.Phase phase = Stats.phase("convert")) {
+                    if (emitted.isEmpty()) {
+                        return toJsonValue(pooled, output);
+                    }
+                    elements(pooled, output, emitted::add);
+                    return Json.createArrayBuilder(emitted).build();
+                }
+            });
+        }
+
+        private long stream(Function<PooledContext, Object> input, Consumer<JsonValue> sink)
+            throws TransformerException {
+            long[] count = { 0 };
+            Consumer<JsonValue> counting = value -> {
+                count[0]++;
+                sink.accept(value);
+            };
+            execute(input, counting, (pooled, output) -> {
+                elements(pooled, output, counting);
+                return null;
+            });
+            return count[0];
+        }
+
+        private <T> T execute(
+            Function<PooledContext, Object> input,
+            Consumer<JsonValue> emit,
+            BiFunction<PooledContext, Value, T> finish
+        ) throws TransformerException {
+            PooledContext pooled = borrow();
+            boolean reusable = false;
+            try {
+                ProxyExecutable emitter = args -> {
+                    for (Value arg : args) {
+                        emit.accept(toJsonValue(pooled, arg));
+                    }
+                    return null;
+                };
+                Value output;
+                try (Stats.Phase phase = Stats.phase("evaluate")) {
+                    output = pooled.function.execute(input.apply(pooled), emitter);
+                }
+                T result = finish.apply(pooled, output);
+                reusable = true;
+                return result;
+            } catch (PolyglotException e) {
+                reusable = !e.isCancelled() && !e.isExit() && !e.isInternalError() && !e.isResourceExhausted();
+                throw new TransformerException(getName() + ": " + e.getMessage(), e);
+            } finally {
+                release(pooled, reusable);
+            }
+        }
+
+        /**
+         * Pass each element of an iterable output to the sink, or the output itself if it is not iterable.
+         * Undefined and null outputs produce nothing.
+         */
+        private static void elements(PooledContext pooled, Value output, Consumer<JsonValue> sink) {
+            if (output.isNull()) {
+                return;
+            }
+            if (output.isString() || !(output.isIterator() || output.hasIterator())) {
+                sink.accept(toJsonValue(pooled, output));
+                return;
+            }
+            Value iterator = output.isIterator() ? output : output.getIterator();
+            while (iterator.hasIteratorNextElement()) {
+                sink.accept(toJsonValue(pooled, iterator.getIteratorNextElement()));
+            }
+        }
+
+        /**
+         * Convert a template's output, inside its context so each step need not enter it again.
+         */
+        private static JsonValue toJsonValue(PooledContext pooled, Value output) {
+            pooled.context.enter();
+            try {
+                return toJsonValue(output);
+            } finally {
+                pooled.context.leave();
+            }
+        }
+
+        /**
+         * Convert a JS value as {@code JSON.stringify} would: {@code toJSON} is called, undefined and
+         * functions are null, and so are non-finite numbers.
+         */
+        static JsonValue toJsonValue(Value value) {
+            JsonValue json = convert(value);
+            return json == null ? JsonValue.NULL : json;
+        }
+
+        /**
+         * Convert a value, or return null for undefined and functions, which objects leave out.
+         * Strings and numbers, the most common elements, are tested for first: every test is a call into the context.
+         */
+        private static JsonValue convert(Value value) {
+            if (value.isString()) {
+                return JSON.createValue(value.asString());
+            }
+            if (value.isNumber()) {
+                if (value.fitsInInt()) {
+                    return JSON.createValue(value.asInt());
+                }
+                if (value.fitsInLong()) {
+                    return JSON.createValue(value.asLong());
+                }
+                double d = value.asDouble();
+                return Double.isNaN(d) || Double.isInfinite(d) ? JsonValue.NULL : JSON.createValue(d == 0 ? 0 : d);
+            }
+            if (value.isBoolean()) {
+                return value.asBoolean() ? JsonValue.TRUE : JsonValue.FALSE;
+            }
+            if (value.isNull()) {
+                return "null".equals(value.toString()) ? JsonValue.NULL : null;
+            }
+            if (value.isProxyObject()) {
+                Object proxy = value.asProxyObject();
+                if (proxy instanceof JsonView view) {
+                    return view.json();
+                }
+                if (proxy instanceof LazyJson.Node node && node.unmodified() instanceof JsonValue json) {
+                    return json;
+                }
+            } else if (value.canExecute()) {
+                return null;
+            }
+            if (value.hasArrayElements()) {
+                if (!value.isProxyObject() && value.canInvokeMember("toJSON")) {
+                    return convert(value.invokeMember("toJSON"));
+                }
+                JsonArrayBuilder array = JSON.createArrayBuilder();
+                for (long i = 0, size = value.getArraySize(); i < size; i++) {
+                    JsonValue element = convert(value.getArrayElement(i));
+                    array.add(element == null ? JsonValue.NULL : element);
+                }
+                return array.build();
+            }
+            if (value.hasMembers()) {
+                if (!value.isProxyObject() && value.canInvokeMember("toJSON")) {
+                    return convert(value.invokeMember("toJSON"));
+                }
+                JsonObjectBuilder object = JSON.createObjectBuilder();
+                for (String key : value.getMemberKeys()) {
+                    JsonValue member = convert(value.getMember(key));
+                    if (member != null) {
+                        object.add(key, member);
+                    }
+                }
+                return object.build();
+            }
+            return JsonValue.NULL;
+        }
+
+        /**
+         * Bind a JSON-P value into JS: objects and arrays as views, scalars as JS primitives.
+         */
+        static Object toJs(JsonValue value, JsonView parent) {
+            return switch (value.getValueType()) {
+                case OBJECT -> new ObjectView(value.asJsonObject(), parent);
+                case ARRAY -> new ArrayView(value.asJsonArray(), parent);
+                case STRING -> ((JsonString) value).getString();
+                case NUMBER -> number((JsonNumber) value);
+                case TRUE -> Boolean.TRUE;
+                case FALSE -> Boolean.FALSE;
+                case NULL -> null;
+            };
+        }
+
+        private static Object number(JsonNumber number) {
+            if (number.isIntegral()) {
+                try {
+                    long value = number.longValueExact();
+                    if (value == (int) value) {
+                        return (int) value;
+                    }
+                    // JS numbers are doubles; larger longs would surface as BigInt
+                    return Math.abs(value) <= 1L << 53 ? Long.valueOf(value) : Double.valueOf(value);
+                } catch (ArithmeticException e) {
+                    return number.doubleValue();
+                }
+            }
+            return number.doubleValue();
+        }
+
+        /**
+         * A JSON-P object or array bound into JS. Members are converted as they are read and
+         * assignments are kept alongside, marking the view and its parents modified. An unmodified
+         * view converts back to the value it was made from.
+         */
+        private abstract static class JsonView {
+
+            private final JsonView parent;
+            private boolean modified;
+
+            JsonView(JsonView parent) {
+                this.parent = parent;
+            }
+
+            void modify() {
+                for (JsonView view = this; view != null && !view.modified; view = view.parent) {
+                    view.modified = true;
+                }
+            }
+
+            boolean isModified() {
+                return modified;
+            }
+
+            abstract JsonValue json();
+
+            /**
+             * Convert a member read for the first time, leaving converted and assigned members as they are.
+             */
+            Object resolve(Object member) {
+                return member instanceof JsonValue json ? toJs(json, this) : member;
+            }
+
+            /**
+             * Convert a member, or return null for undefined and functions, which objects leave out.
+             */
+            static JsonValue json(Object member) {
+                return switch (member) {
+                    case null -> JsonValue.NULL;
+                    case JsonValue json -> json;
+                    case JsonView view -> view.json();
+                    case Value value -> convert(value);
+                    case String string -> JSON.createValue(string);
+                    case Integer n -> JSON.createValue(n);
+                    case Long n -> JSON.createValue(n);
+                    case Double n -> JSON.createValue(n);
+                    case Boolean b -> b ? JsonValue.TRUE : JsonValue.FALSE;
+                    default -> throw new JsonException("Cannot convert " + member.getClass().getName() + " to JSON");
+                };
+            }
+        }
+
+        private static final class ObjectView extends JsonView implements ProxyObject {
+
+            private final JsonObject object;
+            private Map<String, Object> members;
+
+            ObjectView(JsonObject object, JsonView parent) {
+                super(parent);
+                this.object = object;
+            }
+
+            private Map<String, Object> members() {
+                if (members == null) {
+                    members = new LinkedHashMap<>(object);
+                }
+                return members;
+            }
+
+            @Override
+            public Object getMember(String key) {
+                Object member = members().get(key);
+                Object resolved = resolve(member);
+                if (resolved != member) {
+                    members.put(key, resolved);
+                }
+                return resolved;
+            }
+
+            @Override
+            public Object getMemberKeys() {
+                return ProxyArray.fromList(new ArrayList<>(members == null ? object.keySet() : members.keySet()));
+            }
+
+            @Override
+            public boolean hasMember(String key) {
+                return members == null ? object.containsKey(key) : members.containsKey(key);
+            }
+
+            @Override
+            public void putMember(String key, Value value) {
+                members().put(key, value);
+                modify();
+            }
+
+            @Override
+            public boolean removeMember(String key) {
+                if (!hasMember(key)) {
+                    return false;
+                }
+                members().remove(key);
+                modify();
+                return true;
+            }
+
+            @Override
+            JsonValue json() {
+                if (!isModified()) {
+                    return object;
+                }
+                JsonObjectBuilder builder = JSON.createObjectBuilder();
+                members.forEach((key, member) -> {
+                    JsonValue json = json(member);
+                    if (json != null) {
+                        builder.add(key, json);
+                    }
+                });
+                return builder.build();
+            }
+        }
+
+        private static final class ArrayView extends JsonView implements ProxyArray {
+
+            private final JsonArray array;
+            private List<Object> elements;
+
+            ArrayView(JsonArray array, JsonView parent) {
+                super(parent);
+                this.array = array;
+            }
+
+            private List<Object> elements() {
+                if (elements == null) {
+                    elements = new ArrayList<>(array);
+                }
+                return elements;
+            }
+
+            @Override
+            public Object get(long index) {
+                List<Object> elements = elements();
+                if (index < 0 || index >= elements.size()) {
+                    throw new ArrayIndexOutOfBoundsException((int) index);
+                }
+                Object element = elements.get((int) index);
+                Object resolved = resolve(element);
+                if (resolved != element) {
+                    elements.set((int) index, resolved);
+                }
+                return resolved;
+            }
+
+            @Override
+            public void set(long index, Value value) {
+                List<Object> elements = elements();
+                if (index < 0 || index > Integer.MAX_VALUE - 8) {
+                    throw new ArrayIndexOutOfBoundsException((int) index);
+                }
+                while (elements.size() <= index) {
+                    elements.add(null);
+                }
+                elements.set((int) index, value);
+                modify();
+            }
+
+            @Override
+            public boolean remove(long index) {
+                List<Object> elements = elements();
+                if (index < 0 || index >= elements.size()) {
+                    return false;
+                }
+                elements.remove((int) index);
+                modify();
+                return true;
+            }
+
+            @Override
+            public long getSize() {
+                return elements == null ? array.size() : elements.size();
+            }
+
+            @Override
+            JsonValue json() {
+                if (!isModified()) {
+                    return array;
+                }
+                JsonArrayBuilder builder = JSON.createArrayBuilder();
+                elements.forEach(element -> {
+                    JsonValue json = json(element);
+                    builder.add(json == null ? JsonValue.NULL : json);
+                });
+                return builder.build();
+            }
+        }
+
+        private PooledContext borrow() throws TransformerException {
+            if (closed) {
+                throw new TemplateClosedException(getName() + " is closed");
+            }
+            PooledContext pooled = idle.poll();
+            if (pooled != null) {
+                return pooled;
+            }
+            if (created.incrementAndGet() <= owner.getPoolSize()) {
+                try (Stats.Phase phase = Stats.phase("compile")) {
+                    return new PooledContext(owner.getEngine(), source);
+                } catch (PolyglotException e) {
+                    created.decrementAndGet();
+                    throw new TransformerException(getName() + ": " + e.getMessage(), e);
+                }
+            }
+            created.decrementAndGet();
+            try {
+                return idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransformerException("interrupted waiting for a context for " + getName(), e);
+            }
+        }
+
+        private void release(PooledContext pooled, boolean reusable) {
+            if (reusable && !closed && idle.offer(pooled)) {
+                return;
+            }
+            created.decrementAndGet();
+            pooled.context.close(true);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            owner.forget(this);
+            PooledContext pooled;
+            while ((pooled = idle.poll()) != null) {
+                pooled.context.close();
+            }
+        }
+
+        /**
+         * Thrown when a template is run after it was closed, so a caller that may race a reload can tell it apart.
+         */
+        private static final class TemplateClosedException extends IllegalStateException {
+
+            private static final long serialVersionUID = 1L;
+
+            TemplateClosedException(String message) {
+                super(message);
+            }
+        }
+    }
+
+    /**
+     * Templates built into the binary. A native image initialises this class at build time, so
+     * the templates named by the {@value #PROPERTY} system property given to native-image are
+     * read into the image heap and the specialised binary never reads them from disk.
+     *
+     * An embedded template is only used when asked for by name with a leading {@value #PREFIX},
+     * such as {@code @template.js}, and is found by the path it was embedded from or by its file
+     * name. Any other name is read from the file system, so an edited file is never shadowed.
+     */
+    static final class EmbeddedTemplates {
+
+        static final String PROPERTY = "jsont.templates", PREFIX = "@";
+
+        private static final Map<String, String> TEMPLATES = load(System.getProperty(PROPERTY, ""));
+
+        private EmbeddedTemplates() {}
+
+        /**
+         * Read each template in a comma separated list of files.
+         */
+        static Map<String, String> load(String files) {
+            Map<String, String> templates = new HashMap<>();
+            for (String file : files.split(",")) {
+                if (file.isBlank()) {
+                    continue;
+                }
+                Path path = Path.of(file.strip());
+                try {
+                    String script = Files.readString(path);
+                    templates.put(path.toString(), script);
+                    templates.put(path.getFileName().toString(), script);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("cannot embed template " + path, e);
+                }
+            }
+            return Map.copyOf(templates);
+        }
+
+        /**
+         * The embedded template named {@code @path} or {@code @name}, or null.
+         */
+        static String get(String template) {
+            return get(TEMPLATES, template);
+        }
+
+        static String get(Map<String, String> templates, String template) {
+            if (templates.isEmpty() || !template.startsWith(PREFIX)) {
+                return null;
+            }
+            String embedded = template.substring(PREFIX.length());
+            String script = templates.get(embedded);
+            if (script == null) {
+                Path name = Path.of(embedded).getFileName();
+                script = name == null ? null : templates.get(name.toString());
+            }
+            return script;
+        }
+    }
+
+    /**
+     * An ordered list of templates and operations run in one process, each stage's result passed
+     * to the next as a JsonValue rather than written out and parsed again by another process.
+     *
+     * A spec is a JSON array of stages. A string is a template file. An array is an operation
+     * and its operands, where {@code "-"} stands for the previous stage's result and is added as
+     * the last operand when not given, e.g.
+     * <pre>
+     * ["extract.js", ["apply", "fixes.patch.json"], ["merge", "defaults.json"], "summary.js"]
+     * </pre>
+     * Templates come from {@link TemplateEngine#template(Path)}, so a template used by several
+     * stages or pipelines is compiled once. Operand files are read when the pipeline is parsed.
+     */
+    public static class Pipeline {
+
+        /**
+         * One step of a pipeline.
+         */
+        @FunctionalInterface
+        public interface Stage {
+            JsonValue apply(JsonValue value) throws TransformerException;
+        }
+
+        private final List<String> names = new ArrayList<>();
+        private final List<Stage> stages = new ArrayList<>();
+
+        /**
+         * Parse a pipeline spec, compiling its templates with the given engine.
+         */
+        public static Pipeline parse(TemplateEngine engine, JsonArray spec) throws IOException {
+            Pipeline pipeline = new Pipeline();
+            for (JsonValue stage : spec) {
+                if (stage.getValueType() == JsonValue.ValueType.STRING) {
+                    String template = ((JsonString) stage).getString();
+                    pipeline.then(engine.template(Path.of(IDENTITY_ARG.equals(template) ? IDENTITY : template)));
+                    continue;
+                }
+                List<String> args = stage.asJsonArray().getValuesAs(JsonString::getString);
+                Operation operation = args.isEmpty() ? null : Operation.fromString(args.get(0));
+                if (operation == null || args.size() > 3) {
+                    throw new IllegalArgumentException("Expected [operation, operand...] but was " + stage);
+                }
+                List<JsonStructure> operands = new ArrayList<>();
+                for (String operand : args.subList(1, args.size())) {
+                    operands.add(PREVIOUS.equals(operand) ? null : readStructure(operand, UTF8));
+                }
+                if (!args.subList(1, args.size()).contains(PREVIOUS)) {
+                    operands.add(null);
+                }
+                if (operands.size() != 2) {
+                    throw new IllegalArgumentException("Operation " + operation + " takes two operands: " + stage);
+                }
+                pipeline.then(operation, operands.get(0), operands.get(1));
+            }
+            return pipeline;
+        }
+
+        /**
+         * Add a stage that runs a template over the previous result.
+         */
+        public Pipeline then(CompiledTemplate template) {
+            return then(template.getName(), template::transform);
+        }
+
+        /**
+         * Add a stage that runs an operation, with the previous result in place of a null operand.
+         */
+        public Pipeline then(Operation operation, JsonStructure operand1, JsonStructure operand2) {
+            return then(operation.name().toLowerCase(), value -> {
+                if (!(value instanceof JsonStructure structure)) {
+                    throw new TransformerException("expected an object or array but was " + value.getValueType());
+                }
+                return operation.apply(operand1 == null ? structure : operand1, operand2 == null ? structure : operand2);
+            });
+        }
+
+        public Pipeline then(String name, Stage stage) {
+            names.add(name);
+            stages.add(stage);
+            return this;
+        }
+
+        /**
+         * Run every stage in order.
+         *
+         * @throws TransformerException naming the (1 based) stage that failed
+         */
+        public JsonValue apply(JsonValue input) throws TransformerException {
+            JsonValue value = input;
+            for (int i = 0; i < stages.size(); i++) {
+                try {
+                    value = stages.get(i).apply(value);
+                } catch (TransformerException | JsonException e) {
+                    throw new TransformerException("stage " + (i + 1) + " (" + names.get(i) + "): " + e.getMessage(), e);
+                }
+            }
+            return value;
+        }
+
+        public int size() {
+            return stages.size();
+        }
+    }
+
+    /**
+     * Map a template over one huge array in parallel and combine the results.
+     *
+     * The array is named by a JSON Pointer into a {@link LazyJson} document and is cut into chunks
+     * of roughly {@link #chunkSize(long)} bytes by skip-scanning its elements, so nothing outside
+     * the chunks is decoded. Each chunk is handed as JSON text to a pooled context, where
+     * {@code JSON.parse} builds it and the map template sees it as {@code _}, an array of elements.
+     * Chunks are submitted while the scan is still running, and run on as many contexts as the
+     * engine's pool holds.
+     *
+     * The partial results are combined in chunk order, or with {@link #unordered()} in the order
+     * the chunks finish. The reduce template is given them as an array; without one, array results
+     * are concatenated and other results appended, so a map template such as
+     * {@code $ = _.map(hit => hit._source)} gives the same result as it would over the whole array.
+     */
+    public static class MapReduce {
+
+        /** Bounds of the default chunk size. */
+        static final long MIN_CHUNK = 64L << 10, MAX_CHUNK = 64L << 20;
+
+        private final CompiledTemplate map, reduce;
+        private final String pointer;
+        private final long chunkSize;
+        private final boolean ordered;
+
+        public MapReduce(CompiledTemplate map, String pointer) {
+            this(map, null, pointer, 0, true);
+        }
+
+        private MapReduce(CompiledTemplate map, CompiledTemplate reduce, String pointer, long chunkSize, boolean ordered) {
+            this.map = map;
+            this.reduce = reduce;
+            this.pointer = pointer;
+            this.chunkSize = chunkSize;
+            this.ordered = ordered;
+        }
+
+        /**
+         * Combine the partial results with a template, given them as an array.
+         */
+        public MapReduce reduce(CompiledTemplate reduce) {
+            return new MapReduce(map, reduce, pointer, chunkSize, ordered);
+        }
+
+        /**
+         * Cut chunks of about this many bytes, instead of a share of the input sized by the parallelism.
+         */
+        public MapReduce chunkSize(long bytes) {
+            return new MapReduce(map, reduce, pointer, bytes, ordered);
+        }
+
+        /**
+         * Combine the partial results in the order the chunks finish.
+         */
+        public MapReduce unordered() {
+            return new MapReduce(map, reduce, pointer, chunkSize, false);
+        }
+
+        /**
+         * Run the map template over every chunk on a pool of the given size, then combine the results.
+         *
+         * @throws TransformerException naming the (1 based) chunk that failed
+         */
+        public JsonValue apply(LazyJson input, int parallelism) throws TransformerException {
+            long pos = input.find(pointer);
+            if (pos < 0 || input.at(pos) != '[') {
+                throw new JsonException(pointer + " is not an array");
+            }
+            long limit = chunkSize > 0
+                ? chunkSize
+                : Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, input.length() / (parallelism * 8L)));
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                List<Future<JsonValue>> chunks = new ArrayList<>();
+                BlockingQueue<Future<JsonValue>> done = new LinkedBlockingQueue<>();
+                // start of the current chunk and of the last element seen
+                long[] bounds = { -1, -1 };
+                try (Stats.Phase phase = Stats.phase("scan")) {
+                    input.elements(pos, offset -> {
+                        if (bounds[0] < 0) {
+                            bounds[0] = offset;
+                        } else if (offset - bounds[0] >= limit) {
+                            long end = offset - 1;
+                            while (input.at(end) != ',') {
+                                end--;
+                            }
+                            chunks.add(submit(pool, done, input, chunks.size() + 1, bounds[0], end));
+                            bounds[0] = offset;
+                        }
+                        bounds[1] = offset;
+                    });
+                    if (bounds[0] >= 0) {
+                        chunks.add(submit(pool, done, input, chunks.size() + 1, bounds[0], input.skipValue(bounds[1])));
+                    }
+                }
+                Stats.count("chunks", chunks.size());
+
+                List<JsonValue> partials = new ArrayList<>(chunks.size());
+                for (int i = 0; i < chunks.size(); i++) {
+                    Future<JsonValue> chunk = ordered ? chunks.get(i) : done.take();
+                    try {
+                        partials.add(chunk.get());
+                    } catch (ExecutionException e) {
+                        throw new TransformerException(
+                            "chunk " + (chunks.indexOf(chunk) + 1) + ": " + e.getCause().getMessage(),
+                            e.getCause()
+                        );
+                    }
+                }
+                return combine(partials);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransformerException("interrupted waiting for " + map.getName(), e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private Future<JsonValue> submit(
+            ForkJoinPool pool,
+            BlockingQueue<Future<JsonValue>> done,
+            LazyJson input,
+            long chunk,
+            long from,
+            long to
+        ) {
+            FutureTask<JsonValue> task = new FutureTask<>(() -> {
+                Stats.record(chunk);
+                String json;
+                try (Stats.Phase phase = Stats.phase("read")) {
+                    json = "[" + input.decode(from, to) + "]";
+                }
+                return map.transformJson(json);
+            }) {
+                @Override
+                protected void done() {
+                    done.add(this);
+                }
+            };
+            pool.execute(task);
+            return task;
+        }
+
+        private JsonValue combine(List<JsonValue> partials) throws TransformerException {
+            if (reduce != null) {
+                return reduce.transform(Json.createArrayBuilder(partials).build());
+            }
+            try (Stats.Phase phase = Stats.phase("combine")) {
+                JsonArrayBuilder combined = Json.createArrayBuilder();
+                for (JsonValue partial : partials) {
+                    if (partial.getValueType() == JsonValue.ValueType.ARRAY) {
+                        partial.asJsonArray().forEach(combined::add);
+                    } else {
+                        combined.add(partial);
+                    }
+                }
+                return combined.build();
+            }
+        }
+    }
+
+    /**
+     * Keeps a template compiled and runs it again on the inputs that change.
+     *
+     * The template's directory and each input's are registered with a {@link WatchService}, the
+     * whole tree for a directory or glob. Events are coalesced until none has arrived for
+     * {@link #DEBOUNCE_MILLIS}, so an editor's burst of writes costs one run. The template is only
+     * compiled again when its text has changed, and then every input is run; otherwise only the
+     * inputs that were created or modified are. Inputs are expanded again after every batch of
+     * events, so new files in a watched directory or matching a glob are picked up.
+     */
+    public static class Watcher implements AutoCloseable {
+
+        public static final long DEBOUNCE_MILLIS = 50;
+
+        private static final WatchEvent.Kind<?>[] EVENTS = {
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE,
+        };
+
+        /**
+         * Runs the template over some of the inputs.
+         */
+        @FunctionalInterface
+        public interface Action {
+            /**
+             * @param changed the inputs to run, every input on the first run or after the template changed
+             * @param all every input, as expanded by {@link JsonT#expandInputs(List)}
+             */
+            void run(CompiledTemplate template, List<Path> changed, List<Path> all) throws IOException, TransformerException;
+        }
+
+        private final TemplateEngine engine;
+        private final Path templateFile;
+        private final List<String> inputs;
+        private final Action action;
+        private final WatchService service;
+        private final Map<WatchKey, Path> dirs = new HashMap<>();
+        private final Set<Path> recursive = new HashSet<>();
+        private final List<Path> ignored = new ArrayList<>();
+        private CompiledTemplate template;
+        private String script;
+
+        public Watcher(TemplateEngine engine, Path templateFile, List<String> inputs, Action action) throws IOException {
+            this.engine = engine;
+            this.templateFile = templateFile;
+            this.inputs = inputs;
+            this.action = action;
+            this.service = FileSystems.getDefault().newWatchService();
+            register(absolute(templateFile).getParent(), false);
+            for (String input : inputs) {
+                Path path = Path.of(input);
+                if (Files.isDirectory(path)) {
+                    register(absolute(path), true);
+                } else if (isGlob(input)) {
+                    register(absolute(globBase(path)), true);
+                } else {
+                    register(absolute(path).getParent(), false);
+                }
+            }
+        }
+
+        /**
+         * Leave out a file, or the inputs beneath a directory, such as outputs written where inputs are watched.
+         */
+        public Watcher ignoring(Path dir) {
+            ignored.add(absolute(dir));
+            return this;
+        }
+
+        /**
+         * Run every input, then keep running the inputs that change until the thread is interrupted
+         * or the watcher is closed.
+         */
+        public void run() throws IOException {
+            runAll();
+            try {
+                while (poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS) >= 0) {
+                    // keep watching
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Compile the template if it has changed and run every input.
+         *
+         * @return the number of inputs run
+         */
+        public int runAll() throws IOException {
+            return run(Set.of(), true);
+        }
+
+        /**
+         * Wait up to the timeout for changes, then run the inputs they affect.
+         *
+         * @return the number of inputs run, or -1 once the watcher is closed
+         */
+        public int poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+            Set<Path> changed = new HashSet<>();
+            boolean overflow = false;
+            long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+            try {
+                // wait until an event outside the ignored directories arrives
+                while (changed.isEmpty() && !overflow) {
+                    WatchKey key = service.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (key == null) {
+                        return 0;
+                    }
+                    do {
+                        Path dir = dirs.get(key);
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                                overflow = true;
+                                continue;
+                            }
+                            Path path = dir.resolve((Path) event.context());
+                            if (ignored.stream().anyMatch(path::startsWith)) {
+                                continue;
+                            }
+                            if (
+                                event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                                recursive.contains(dir) &&
+                                Files.isDirectory(path)
+                            ) {
+                                register(path, true);
+                            }
+                            changed.add(path);
+                        }
+                        if (!key.reset()) {
+                            dirs.remove(key);
+                        }
+                        key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                    } while (key != null);
+                }
+            } catch (ClosedWatchServiceException e) {
+                return -1;
+            }
+            return run(changed, overflow);
+        }
+
+        private int run(Set<Path> changed, boolean all) throws IOException {
+            long start = System.nanoTime();
+            if (template == null || all || changed.contains(absolute(templateFile))) {
+                String text = readText(templateFile);
+                if (!text.equals(script)) {
+                    if (template != null) {
+                        template.close();
+                    }
+                    template = engine.compile(templateFile.toString(), text);
+                    script = text;
+                    all = true;
+                }
+            }
+            List<Path> files = new ArrayList<>();
+            for (Path file : expandInputs(inputs)) {
+                if (ignored.stream().noneMatch(absolute(file)::startsWith)) {
+                    files.add(file);
+                }
+            }
+            List<Path> affected = all ? files : files.stream().filter(file -> changed.contains(absolute(file))).toList();
+            if (affected.isEmpty()) {
+                return 0;
+            }
+            try {
+                action.run(template, affected, files);
+            } catch (IOException | TransformerException | RuntimeException e) {
+                System.err.println(templateFile + ": " + e.getMessage());
+            }
+            System.err.println(
+                "watch: " + affected.size() + " input(s) in " + (System.nanoTime() - start) / 1_000_000 + " ms"
+            );
+            return affected.size();
+        }
+
+        private void register(Path dir, boolean tree) throws IOException {
+            if (!Files.isDirectory(dir) || dirs.containsValue(dir)) {
+                return;
+            }
+            if (!tree) {
+                dirs.put(dir.register(service, EVENTS), dir);
+                return;
+            }
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path sub : paths.filter(Files::isDirectory).toList()) {
+                    if (ignored.stream().anyMatch(sub::startsWith)) {
+                        continue;
+                    }
+                    if (!dirs.containsValue(sub)) {
+                        dirs.put(sub.register(service, EVENTS), sub);
+                    }
+                    recursive.add(sub);
+                }
+            }
+        }
+
+        private static Path absolute(Path path) {
+            return path.toAbsolutePath().normalize();
+        }
+
+        @Override
+        public void close() throws IOException {
+            service.close();
+            if (template != null) {
+                template.close();
+            }
+        }
+    }
+
+    /**
+     * Serves templates and operations over HTTP, so callers on a request path pay for a transform
+     * rather than for starting a process.
+     *
+     * Every {@code *.js} file under the templates directory is compiled at startup and served at
+     * {@code POST /transform/<name>}, name being its path in the directory without the extension.
+     * A template is checked when it is requested and compiled again if its text has changed, and
+     * templates added later are compiled on their first request. The operations are served at
+     * {@code POST /diff}, {@code /merge}, {@code /patch}, {@code /apply} and {@code /join}, taking
+     * their two operands as a JSON array. {@code GET /templates} lists the template names and
+     * {@code GET /metrics} reports request counts and latency percentiles per endpoint.
+     *
+     * Requests run on a pool of platform threads, as a template is CPU bound and on a virtual thread
+     * would hold its carrier until it finished, keeping other requests from even being refused. No
+     * more requests run at once than the engine has contexts per template, so a transform never
+     * waits for a context. A request that cannot start within the wait limit is refused with 503,
+     * and a body over the size limit with 413. A reloaded template closes the one it replaces,
+     * which also drops it from the engine.
+     */
+    public static class Server implements AutoCloseable {
+
+        public static final long DEFAULT_MAX_REQUEST_BYTES = 16L << 20;
+
+        public static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+        /** Latency percentiles are taken over this many of the latest requests to an endpoint. */
+        static final int SAMPLES = 4096;
+
+        private final TemplateEngine engine;
+        private final Path templates;
+        private final Semaphore running;
+        private final Map<String, Loaded> loaded = new ConcurrentHashMap<>();
+        private final Map<String, Latencies> latencies = new ConcurrentSkipListMap<>();
+        private final AtomicLong rejected = new AtomicLong();
+        private JsonDiff diff = new JsonDiff();
+        private long maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES, maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+        private HttpServer server;
+        private ExecutorService executor;
+
+        private record Loaded(CompiledTemplate template, String script, FileTime modified) {}
+
+        private record Response(int status, JsonValue body) {}
+
+        public Server(TemplateEngine engine, Path templates) {
+            this.engine = engine;
+            this.templates = templates.toAbsolutePath().normalize();
+            this.running = new Semaphore(engine.getPoolSize());
+        }
+
+        /**
+         * How patch matches up array elements, see {@link JsonDiff#lcs()} and {@link JsonDiff#keys(String)}.
+         */
+        public Server diff(JsonDiff diff) {
+            this.diff = diff;
+            return this;
+        }
+
+        public Server maxRequestBytes(long maxRequestBytes) {
+            this.maxRequestBytes = maxRequestBytes;
+            return this;
+        }
+
+        /**
+         * How long a request waits to start when every context is busy before it is refused.
+         */
+        public Server maxWait(long millis) {
+            this.maxWaitMillis = millis;
+            return this;
+        }
+
+        /**
+         * Compile every template and start listening; port 0 picks a free port, see {@link #getAddress()}.
+         */
+        public Server start(InetSocketAddress address) throws IOException {
+            for (String name : names()) {
+                template(name);
+            }
+            executor = Executors.newCachedThreadPool();
+            server = HttpServer.create(address, 0);
+            server.setExecutor(executor);
+            server.createContext("/", this::handle);
+            server.start();
+            return this;
+        }
+
+        public InetSocketAddress getAddress() {
+            return server.getAddress();
+        }
+
+        /**
+         * The names of the templates in the directory, sorted.
+         */
+        public List<String> names() throws IOException {
+            try (Stream<Path> paths = Files.walk(templates)) {
+                return paths
+                    .filter(path -> Files.isRegularFile(path) && path.getFileName().toString().endsWith(".js"))
+                    .map(path -> {
+                        String name = templates.relativize(path).toString().replace(templates.getFileSystem().getSeparator(), "/");
+                        return name.substring(0, name.length() - ".js".length());
+                    })
+                    .sorted()
+                    .toList();
+            }
+        }
+
+        /**
+         * The named template, compiled again if its file has changed, or null when there is no such file.
+         */
+        CompiledTemplate template(String name) throws IOException {
+            Path file = templates.resolve(name + ".js").normalize();
+            if (!file.startsWith(templates) || !Files.isRegularFile(file)) {
+                Loaded removed = loaded.remove(name);
+                if (removed != null) {
+                    removed.template().close();
+                }
+                return null;
+            }
+            FileTime modified = Files.getLastModifiedTime(file);
+            Loaded current = loaded.get(name);
+            if (current != null && current.modified().equals(modified)) {
+                return current.template();
+            }
+            synchronized (loaded) {
+                current = loaded.get(name);
+                if (current != null && current.modified().equals(modified)) {
+                    return current.template();
+                }
+                String script = readText(file);
+                if (current != null && current.script().equals(script)) {
+                    loaded.put(name, new Loaded(current.template(), script, modified));
+                    return current.template();
+                }
+                CompiledTemplate template = engine.compile(file.toString(), script);
+                loaded.put(name, new Loaded(template, script, modified));
+                if (current != null) {
+                    current.template().close();
+                    System.err.println("serve: reloaded " + name);
+                }
+                return template;
+            }
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            String path = exchange.getRequestURI().getPath();
+            String endpoint = path.startsWith("/transform/") ? path.substring(1) : path.substring(Math.min(1, path.length()));
+            try (exchange) {
+                Response response;
+                try {
+                    response = route(exchange, endpoint);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("serve: " + path + ": " + e);
+                    response = new Response(500, error(e.toString()));
+                }
+                // before it is sent, so a client holding the response finds the request in /metrics
+                if (response.status() != 404) {
+                    latencies.computeIfAbsent(endpoint, e -> new Latencies()).record(System.nanoTime() - start, response.status() >= 400);
+                }
+                send(exchange, response);
+            } catch (IOException e) {
+                System.err.println("serve: " + path + ": " + e);
+            }
+        }
+
+        private Response route(HttpExchange exchange, String endpoint) throws IOException {
+            String method = exchange.getRequestMethod();
+            if (endpoint.equals("metrics") || endpoint.equals("templates")) {
+                if (!method.equals("GET")) {
+                    return new Response(405, error("use GET for /" + endpoint));
+                }
+                return new Response(200, endpoint.equals("metrics") ? metrics() : Json.createArrayBuilder(names()).build());
+            }
+            Operation operation = endpoint.contains("/") ? null : Operation.fromString(endpoint);
+            String name = endpoint.startsWith("transform/") ? endpoint.substring("transform/".length()) : null;
+            if (operation == null && (name == null || template(name) == null)) {
+                return new Response(404, error("no template or operation at /" + endpoint));
+            }
+            if (!method.equals("POST")) {
+                return new Response(405, error("use POST for /" + endpoint));
+            }
+            try {
+                if (!running.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    rejected.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    return new Response(503, error("busy: all " + engine.getPoolSize() + " contexts are in use"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Response(503, error("interrupted"));
+            }
+            try {
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                byte[] body = length != null && Long.parseLong(length) > maxRequestBytes
+                    ? null
+                    : exchange.getRequestBody().readNBytes((int) Math.min(maxRequestBytes + 1, Integer.MAX_VALUE - 8));
+                if (body == null || body.length > maxRequestBytes) {
+                    return new Response(413, error("request body is over " + maxRequestBytes + " bytes"));
+                }
+                JsonValue input;
+                try (JsonReader reader = Json.createReader(new ByteArrayInputStream(body))) {
+                    input = reader.readValue();
+                } catch (JsonException e) {
+                    return new Response(400, error(e.getMessage()));
+                }
+                if (operation != null) {
+                    if (
+                        input.getValueType() != JsonValue.ValueType.ARRAY ||
+                        input.asJsonArray().size() != 2 ||
+                        !(input.asJsonArray().get(0) instanceof JsonStructure operand1) ||
+                        !(input.asJsonArray().get(1) instanceof JsonStructure operand2)
+                    ) {
+                        return new Response(400, error("expected [operand1, operand2], two objects or arrays"));
+                    }
+                    try {
+                        return new Response(200, operation.apply(operand1, operand2, diff));
+                    } catch (JsonException | ClassCastException e) {
+                        return new Response(422, error(e.getMessage()));
+                    }
+                }
+                try {
+                    return new Response(200, transform(name, input));
+                } catch (TransformerException e) {
+                    return new Response(422, error(e.getMessage()));
+                }
+            } finally {
+                running.release();
+            }
+        }
+
+        private JsonValue transform(String name, JsonValue input) throws IOException, TransformerException {
+            try {
+                return template(name).transform(input);
+            } catch (CompiledTemplate.TemplateClosedException e) {
+                // closed by a reload after it was looked up; run the new one
+                return template(name).transform(input);
+            }
+        }
+
+        private JsonObject metrics() {
+            JsonObjectBuilder endpoints = Json.createObjectBuilder();
+            latencies.forEach((endpoint, recorded) -> endpoints.add(endpoint, recorded.toJson()));
+            return Json.createObjectBuilder()
+                .add("running", engine.getPoolSize() - running.availablePermits())
+                .add("rejected", rejected.get())
+                .add("templates", loaded.size())
+                .add("endpoints", endpoints)
+                .build();
+        }
+
+        private static JsonObject error(String message) {
+            return Json.createObjectBuilder().add("error", String.valueOf(message)).build();
+        }
+
+        private static void send(HttpExchange exchange, Response response) throws IOException {
+            byte[] bytes = response.body().toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(response.status(), bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+
+        @Override
+        public void close() {
+            if (server != null) {
+                server.stop(0);
+                executor.close();
+            }
+            loaded.values().forEach(entry -> entry.template().close());
+            loaded.clear();
+        }
+
+        /**
+         * Request count, failures and the latencies of the latest {@value #SAMPLES} requests to one endpoint.
+         */
+        static class Latencies {
+
+            private final long[] samples = new long[SAMPLES];
+            private long count, errors;
+
+            synchronized void record(long nanos, boolean error) {
+                samples[(int) (count++ % SAMPLES)] = nanos;
+                if (error) {
+                    errors++;
+                }
+            }
+
+            /**
+             * Counts, and the 50th, 90th and 99th percentile and maximum latency in milliseconds.
+             */
+            synchronized JsonObject toJson() {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+                Arrays.sort(sorted);
+                JsonObjectBuilder json = Json.createObjectBuilder().add("count", count).add("errors", errors);
+                if (sorted.length > 0) {
+                    json
+                        .add("p50", millis(sorted, 0.50))
+                        .add("p90", millis(sorted, 0.90))
+                        .add("p99", millis(sorted, 0.99))
+                        .add("max", millis(sorted, 1.0));
+                }
+                return json.build();
+            }
+
+            /**
+             * The nearest rank percentile, rounded to the microsecond.
+             */
+            private static double millis(long[] sorted, double percentile) {
+                long nanos = sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+                return Math.round(nanos / 1_000.0) / 1_000.0;
+            }
+        }
+    }
+
+    /**
+     * A JS context together with the template function evaluated in it. Only ever used by one thread at a time.
+     */
+    private static class PooledContext {
+
+        /** Typed arrays stringify as arrays rather than as objects keyed by index. */
+        private static final org.graalvm.polyglot.Source TYPED_ARRAY_JSON = org.graalvm.polyglot.Source.create(
+            "js",
+            "Object.defineProperty(Object.getPrototypeOf(Int8Array.prototype), 'toJSON', " +
+                "{ value: function() { return Array.from(this); }, writable: true, configurable: true })"
+        );
+
+        /** Proxies need no host access; buffers are read by typed arrays bound under --typed-arrays. */
+        private static final HostAccess ACCESS = HostAccess.newBuilder().allowBufferAccess(true).build();
+
+        final Context context;
+        final Value function, parse;
+
+        PooledContext(Engine engine, org.graalvm.polyglot.Source source) {
+            this.context = Context.newBuilder("js").engine(engine).allowHostAccess(ACCESS).build();
+            context.eval(TYPED_ARRAY_JSON);
+            this.function = context.eval(source);
+            this.parse = context.getBindings("js").getMember("JSON").getMember("parse");
+        }
+    }
+
+    /**
+     * Structural diff that hashes every subtree once and prunes identical subtrees by hash.
+     *
+     * Both documents are first hashed bottom up into a parallel tree of 64 bit content hashes
+     * (object hashes ignore member order, as object equality does). The diff then only descends
+     * where hashes differ. Subtrees with equal hashes are confirmed equal by one comparison of
+     * their values and pruned, so a hash collision cannot hide a change.
+     *
+     * How array elements are matched up for RFC 6902 patches is configurable:
+     * <ul>
+     *   <li>by default the common prefix and suffix are trimmed by hash and elements that moved
+     *   are found by hash and emitted as {@code move} operations</li>
+     *   <li>{@link #lcs()} aligns arrays on their longest common subsequence of hashes instead, and
+     *   patches unmatched pairs in place between the aligned elements</li>
+     *   <li>{@link #key(String, String)} identifies the elements of matching arrays by a key, such as
+     *   {@code name} in reflect-config entries, so an element whose content changed is patched where
+     *   it is rather than removed and added again</li>
+     * </ul>
+     */
+    public static class JsonDiff {
+
+        private static final long PRIME = 0x100000001b3L, OBJECT = 0x9e3779b97f4a7c15L, ARRAY = 0xc2b2ae3d27d4eb4fL;
+
+        /** Resolved once; Json.createXxx looks the provider up again on every call. */
+        private static final JsonProvider JSON = JsonProvider.provider();
+
+        /** Beyond this many edits an LCS alignment falls back to matching by hash. */
+        static final int MAX_LCS_EDITS = 2048;
+
+        private final boolean lcs;
+        private final Map<String, String> keys;
+
+        public JsonDiff() {
+            this(false, Map.of());
+        }
+
+        private JsonDiff(boolean lcs, Map<String, String> keys) {
+            this.lcs = lcs;
+            this.keys = keys;
+        }
+
+        /**
+         * Align arrays on their longest common subsequence of element hashes.
+         */
+        public JsonDiff lcs() {
+            return new JsonDiff(true, keys);
+        }
+
+        /**
+         * Identify the elements of the arrays at arrayPath by a key.
+         *
+         * @param arrayPath a JSON Pointer to the array such as {@code /hits/hits}, where a segment
+         *                  of {@code *} matches any member or index; "" is the root array
+         * @param key       a member name, or a JSON Pointer within each element such as {@code /_source/recordid}
+         */
+        public JsonDiff key(String arrayPath, String key) {
+            Map<String, String> keys = new LinkedHashMap<>(this.keys);
+            keys.put(arrayPath, key);
+            return new JsonDiff(lcs, keys);
+        }
+
+        /**
+         * Parse a comma separated list of arrayPath:key pairs, as given to the --key option.
+         */
+        public JsonDiff keys(String spec) {
+            return new JsonDiff(lcs, parseKeys(keys, spec));
+        }
+
+        /**
+         * Compute an RFC 6902 JSON Patch that turns source into target, matching array elements by hash.
+         */
+        public static JsonArray patch(JsonValue source, JsonValue target) {
+            return new JsonDiff().diff(source, target);
+        }
+
+        /**
+         * Compute an RFC 6902 JSON Patch that turns source into target.
+         */
+        public JsonArray diff(JsonValue source, JsonValue target) {
+            JsonArrayBuilder ops = JSON.createArrayBuilder();
+            patch(hash(source), hash(target), "", ops);
+            return ops.build();
+        }
+
+        /**
+         * Compute an RFC 7396 JSON Merge Patch that turns source into target.
+         */
+        public static JsonValue mergePatch(JsonValue source, JsonValue target) {
+            return mergePatch(hash(source), hash(target));
+        }
+
+        private static JsonValue mergePatch(Hashed source, Hashed target) {
+            if (source.members == null || target.members == null) {
+                return target.value;
+            }
+            JsonObjectBuilder patch = JSON.createObjectBuilder();
+            for (String key : source.members.keySet()) {
+                if (!target.members.containsKey(key)) {
+                    patch.addNull(key);
+                }
+            }
+            for (Map.Entry<String, Hashed> member : target.members.entrySet()) {
+                Hashed from = source.members.get(member.getKey());
+                if (from == null) {
+                    patch.add(member.getKey(), member.getValue().value);
+                } else if (!same(from, member.getValue())) {
+                    patch.add(member.getKey(), mergePatch(from, member.getValue()));
+                }
+            }
+            return patch.build();
+        }
+
+        /**
+         * Whether two subtrees are equal: different hashes rule it out cheaply, equal hashes are confirmed
+         * by comparing the values, so a hash collision cannot hide a change.
+         */
+        private static boolean same(Hashed a, Hashed b) {
+            return a.hash == b.hash && a.value.equals(b.value);
+        }
+
+        private void patch(Hashed source, Hashed target, String path, JsonArrayBuilder ops) {
+            if (same(source, target)) {
+                return;
+            }
+            if (source.members != null && target.members != null) {
+                for (Map.Entry<String, Hashed> member : source.members.entrySet()) {
+                    if (!target.members.containsKey(member.getKey())) {
+                        ops.add(op("remove", path + "/" + escape(member.getKey())));
+                    }
+                }
+                for (Map.Entry<String, Hashed> member : target.members.entrySet()) {
+                    String child = path + "/" + escape(member.getKey());
+                    Hashed from = source.members.get(member.getKey());
+                    if (from == null) {
+                        ops.add(op("add", child).add("value", member.getValue().value));
+                    } else {
+                        patch(from, member.getValue(), child, ops);
+                    }
+                }
+            } else if (source.elements != null && target.elements != null) {
+                String key = keyFor(path);
+                if (key != null) {
+                    String[] segments = keySegments(key);
+                    patchArray(source.elements, target.elements, path, h -> identity(h, segments), true, ops);
+                } else if (lcs && alignArray(source.elements, target.elements, path, ops)) {
+                    return;
+                } else {
+                    patchArray(source.elements, target.elements, path, h -> new Identity(h.hash, h.value), false, ops);
+                }
+            } else {
+                ops.add(op("replace", path).add("value", target.value));
+            }
+        }
+
+        /**
+         * Patch the middle of an array after trimming the common prefix and suffix. Walking the
+         * target positions in order, the array holds the target elements placed so far followed by
+         * the source elements not yet used, and each position is either already the right element,
+         * filled by moving a later element with the same identity, or filled by an add. An element
+         * in the way that is not wanted later is patched in place into the wanted one, or when
+         * matching by key, removed. Leftovers are removed at the end.
+         *
+         * Identities are computed once per element. The unused source elements with each identity
+         * are queued in order, and a Fenwick tree over the source positions counts the unused ones
+         * before a move source to give its current index, so a reversed array is O(n log n).
+         */
+        private void patchArray(
+            Hashed[] source,
+            Hashed[] target,
+            String path,
+            Function<Hashed, Identity> id,
+            boolean keyed,
+            JsonArrayBuilder ops
+        ) {
+            Identity[] sourceIds = new Identity[source.length], targetIds = new Identity[target.length];
+            Arrays.setAll(sourceIds, i -> id.apply(source[i]));
+            Arrays.setAll(targetIds, i -> id.apply(target[i]));
+
+            int prefix = 0;
+            while (prefix < source.length && prefix < target.length && sourceIds[prefix].equals(targetIds[prefix])) {
+                patch(source[prefix], target[prefix], path + "/" + prefix, ops);
+                prefix++;
+            }
+            int suffix = 0;
+            while (
+                suffix < source.length - prefix &&
+                suffix < target.length - prefix &&
+                sourceIds[source.length - 1 - suffix].equals(targetIds[target.length - 1 - suffix])
+            ) {
+                suffix++;
+            }
+
+            // positions are relative to the prefix from here on
+            int sources = source.length - prefix - suffix, targets = target.length - prefix - suffix;
+            Map<Identity, Deque<Integer>> unused = new HashMap<>();
+            Map<Identity, Integer> stillWanted = new HashMap<>();
+            for (int s = 0; s < sources; s++) {
+                unused.computeIfAbsent(sourceIds[prefix + s], k -> new ArrayDeque<>()).add(s);
+            }
+            for (int t = 0; t < targets; t++) {
+                stillWanted.merge(targetIds[prefix + t], 1, Integer::sum);
+            }
+            Unused remaining = new Unused(sources);
+
+            for (int t = 0; t < targets; t++) {
+                Hashed want = target[prefix + t];
+                Identity wantId = targetIds[prefix + t];
+                stillWanted.merge(wantId, -1, Integer::sum);
+                String at = path + "/" + (prefix + t);
+
+                int here = remaining.first();
+                while (
+                    keyed &&
+                    here >= 0 &&
+                    !sourceIds[prefix + here].equals(wantId) &&
+                    stillWanted.getOrDefault(sourceIds[prefix + here], 0) <= 0
+                ) {
+                    ops.add(op("remove", at));
+                    use(here, sourceIds[prefix + here], unused, remaining);
+                    here = remaining.first();
+                }
+
+                if (here >= 0 && sourceIds[prefix + here].equals(wantId)) {
+                    patch(source[prefix + here], want, at, ops);
+                    use(here, wantId, unused, remaining);
+                    continue;
+                }
+                Deque<Integer> candidates = unused.get(wantId);
+                if (candidates != null && !candidates.isEmpty()) {
+                    int from = candidates.peekFirst();
+                    ops.add(op("move", at).add("from", path + "/" + (prefix + t + remaining.before(from))));
+                    patch(source[prefix + from], want, at, ops);
+                    use(from, wantId, unused, remaining);
+                } else if (!keyed && here >= 0 && stillWanted.getOrDefault(sourceIds[prefix + here], 0) <= 0) {
+                    patch(source[prefix + here], want, at, ops);
+                    use(here, sourceIds[prefix + here], unused, remaining);
+                } else {
+                    ops.add(op("add", at).add("value", want.value));
+                }
+            }
+            for (int i = remaining.size() - 1; i >= 0; i--) {
+                ops.add(op("remove", path + "/" + (prefix + targets + i)));
+            }
+            for (int i = 0; i < suffix; i++) {
+                int s = source.length - suffix + i, t = target.length - suffix + i;
+                patch(source[s], target[t], path + "/" + t, ops);
+            }
+        }
+
+        /**
+         * Mark a source element used; it is always the first unused one with its identity.
+         */
+        private static void use(int position, Identity identity, Map<Identity, Deque<Integer>> unused, Unused remaining) {
+            unused.get(identity).pollFirst();
+            remaining.use(position);
+        }
+
+        /**
+         * The source positions not yet used by patchArray, as a Fenwick tree of counts.
+         */
+        private static final class Unused {
+
+            private final int[] tree;
+            private final boolean[] used;
+            private int first, size;
+
+            Unused(int size) {
+                this.tree = new int[size + 1];
+                this.used = new boolean[size];
+                this.size = size;
+                for (int i = 1; i <= size; i++) {
+                    tree[i]++;
+                    int parent = i + (i & -i);
+                    if (parent <= size) {
+                        tree[parent] += tree[i];
+                    }
+                }
+            }
+
+            /** The first unused position, or -1 when all are used. */
+            int first() {
+                while (first < used.length && used[first]) {
+                    first++;
+                }
+                return first < used.length ? first : -1;
+            }
+
+            /** How many unused positions come before this one. */
+            int before(int position) {
+                int count = 0;
+                for (int i = position; i > 0; i -= i & -i) {
+                    count += tree[i];
+                }
+                return count;
+            }
+
+            int size() {
+                return size;
+            }
+
+            void use(int position) {
+                used[position] = true;
+                size--;
+                for (int i = position + 1; i < tree.length; i += i & -i) {
+                    tree[i]--;
+                }
+            }
+        }
+
+        /**
+         * Align two arrays on the longest common subsequence of their element hashes (Myers'
+         * O((N+M)D) algorithm) and emit edits between the aligned elements: paired removals and
+         * insertions are patched in place, the rest become remove and add operations. Aligned
+         * elements are compared too, in case their hashes collide.
+         *
+         * @return false when the arrays differ by more than {@link #MAX_LCS_EDITS} edits
+         */
+        private boolean alignArray(Hashed[] a, Hashed[] b, String path, JsonArrayBuilder ops) {
+            int n = a.length, m = b.length, max = Math.min(n + m, MAX_LCS_EDITS);
+            // trace.get(d)[k + d] is the furthest x reached on diagonal k = x - y after d edits
+            List<int[]> trace = new ArrayList<>();
+            int found = -1;
+            search:
+            for (int d = 0; d <= max; d++) {
+                int[] prev = d == 0 ? null : trace.get(d - 1), next = new int[2 * d + 1];
+                trace.add(next);
+                for (int k = -d; k <= d; k += 2) {
+                    int x = d == 0 ? 0 : down(prev, k, d) ? prev[k + 1 + d - 1] : prev[k - 1 + d - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[x].hash == b[y].hash) {
+                        x++;
+                        y++;
+                    }
+                    next[k + d] = x;
+                    if (x >= n && y >= m) {
+                        found = d;
+                        break search;
+                    }
+                }
+            }
+            if (found < 0) {
+                return false;
+            }
+
+            // walk the trace back from the end collecting the matched (x, y) pairs
+            List<int[]> matches = new ArrayList<>();
+            int x = n, y = m;
+            for (int d = found; d > 0; d--) {
+                int[] prev = trace.get(d - 1);
+                int k = x - y;
+                int prevK = down(prev, k, d) ? k + 1 : k - 1;
+                int prevX = prev[prevK + d - 1];
+                int startX = prevK == k + 1 ? prevX : prevX + 1;
+                while (x > startX) {
+                    matches.add(new int[] { --x, --y });
+                }
+                x = prevX;
+                y = prevX - prevK;
+            }
+            while (x > 0 && y > 0) {
+                matches.add(new int[] { --x, --y });
+            }
+            Collections.reverse(matches);
+
+            int ai = 0, bi = 0;
+            for (int i = 0; i <= matches.size(); i++) {
+                int[] match = i < matches.size() ? matches.get(i) : new int[] { n, m };
+                int removed = match[0] - ai, added = match[1] - bi, paired = Math.min(removed, added);
+                for (int p = 0; p < paired; p++, ai++, bi++) {
+                    patch(a[ai], b[bi], path + "/" + bi, ops);
+                }
+                for (; ai < match[0]; ai++) {
+                    ops.add(op("remove", path + "/" + bi));
+                }
+                for (; bi < match[1]; bi++) {
+                    ops.add(op("add", path + "/" + bi).add("value", b[bi].value));
+                }
+                if (i < matches.size()) {
+                    // aligned on equal hashes, which patch confirms before pruning
+                    patch(a[ai], b[bi], path + "/" + bi, ops);
+                }
+                ai++;
+                bi++;
+            }
+            return true;
+        }
+
+        /**
+         * Whether step d reached diagonal k by an insertion from diagonal k + 1 rather than a removal from k - 1.
+         */
+        private static boolean down(int[] prev, int k, int d) {
+            return k == -d || (k != d && prev[k - 1 + d - 1] < prev[k + 1 + d - 1]);
+        }
+
+        private String keyFor(String path) {
+            return keyFor(keys, path);
+        }
+
+        /**
+         * The key configured for the array at path, matching {@code *} against any one segment.
+         */
+        static String keyFor(Map<String, String> keys, String path) {
+            if (keys.isEmpty()) {
+                return null;
+            }
+            String[] segments = path.split("/", -1);
+            for (Map.Entry<String, String> entry : keys.entrySet()) {
+                String[] pattern = entry.getKey().split("/", -1);
+                if (pattern.length != segments.length) {
+                    continue;
+                }
+                boolean match = true;
+                for (int i = 0; i < pattern.length && match; i++) {
+                    match = "*".equals(pattern[i]) || pattern[i].equals(segments[i]);
+                }
+                if (match) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Parse a comma separated list of arrayPath:key pairs.
+         */
+        static Map<String, String> parseKeys(Map<String, String> keys, String spec) {
+            Map<String, String> parsed = new LinkedHashMap<>(keys);
+            for (String pair : spec.split(",")) {
+                int colon = pair.lastIndexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Expected arrayPath:key but was " + pair);
+                }
+                parsed.put(pair.substring(0, colon), pair.substring(colon + 1));
+            }
+            return parsed;
+        }
+
+        /**
+         * The 64 bit content hash of a value, the same for equal values whatever their member order.
+         */
+        static long contentHash(JsonValue value) {
+            return hash(value).hash;
+        }
+
+        /**
+         * The unescaped member names of a key, parsed once per array rather than once per element.
+         */
+        private static String[] keySegments(String key) {
+            String[] segments = key.startsWith("/") ? key.substring(1).split("/", -1) : new String[] { key };
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = segments[i].replace("~1", "/").replace("~0", "~");
+            }
+            return segments;
+        }
+
+        /**
+         * The identity of an element's key, or of the whole element when it has no such key.
+         */
+        private static Identity identity(Hashed element, String[] segments) {
+            Hashed node = element;
+            for (String name : segments) {
+                Hashed member = node.members != null ? node.members.get(name) : null;
+                int index = node.elements != null ? arrayIndex(name) : -1;
+                if (member != null) {
+                    node = member;
+                } else if (index >= 0 && index < node.elements.length) {
+                    node = node.elements[index];
+                } else {
+                    return new Identity(~element.hash, element.value);
+                }
+            }
+            return new Identity(mix(node.hash ^ OBJECT), node.value);
+        }
+
+        /**
+         * The array index a key segment names, or -1 when it is not one.
+         */
+        private static int arrayIndex(String name) {
+            if (name.isEmpty() || name.length() > 9) {
+                return -1;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                    return -1;
+                }
+            }
+            return Integer.parseInt(name);
+        }
+
+        /**
+         * What array elements are matched on: equal only when the values are, with the hash compared first.
+         */
+        private record Identity(long hash, JsonValue value) {
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Identity other && hash == other.hash && value.equals(other.value);
+            }
+
+            @Override
+            public int hashCode() {
+                return Long.hashCode(hash);
+            }
+        }
+
+        private static JsonObjectBuilder op(String op, String path) {
+            return JSON.createObjectBuilder().add("op", op).add("path", path);
+        }
+
+        static String escape(String key) {
+            return key.replace("~", "~0").replace("/", "~1");
+        }
+
+        /**
+         * A value with the content hash of its subtree, and its hashed members or elements.
+         */
+        private record Hashed(JsonValue value, long hash, Map<String, Hashed> members, Hashed[] elements) {}
+
+        private static Hashed hash(JsonValue value) {
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    Map<String, Hashed> members = new LinkedHashMap<>();
+                    long hash = OBJECT;
+                    for (Map.Entry<String, JsonValue> member : value.asJsonObject().entrySet()) {
+                        Hashed child = hash(member.getValue());
+                        members.put(member.getKey(), child);
+                        // summed so that member order does not matter
+                        hash += mix(hash(member.getKey()) * PRIME ^ child.hash);
+                    }
+                    return new Hashed(value, mix(hash), members, null);
+                }
+                case ARRAY -> {
+                    JsonArray array = value.asJsonArray();
+                    Hashed[] elements = new Hashed[array.size()];
+                    long hash = ARRAY;
+                    for (int i = 0; i < elements.length; i++) {
+                        elements[i] = hash(array.get(i));
+                        hash = mix(hash * PRIME ^ elements[i].hash);
+                    }
+                    return new Hashed(value, hash, null, elements);
+                }
+                case STRING -> {
+                    return new Hashed(value, mix(hash(((JsonString) value).getString())), null, null);
+                }
+                case NUMBER -> {
+                    return new Hashed(value, mix(hash(value.toString()) ^ PRIME), null, null);
+                }
+                default -> {
+                    return new Hashed(value, mix(value.getValueType().ordinal() + 1L), null, null);
+                }
+            }
+        }
+
+        private static long hash(String s) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                hash = (hash ^ s.charAt(i)) * PRIME;
+            }
+            return hash;
+        }
+
+        /** The 64 bit finaliser from MurmurHash3. */
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /**
+     * Replays a sequence of RFC 6902 patches onto one mutable copy of a document.
+     *
+     * {@code Json.createPatch(..).apply(..)} rebuilds the immutable path from the root for every
+     * operation. Here the document is converted once into maps and lists that are updated in place,
+     * so each operation costs the depth of its path and a replay costs the total number of
+     * operations. Immutable values are only built again for {@link #snapshot()} and {@code test}.
+     *
+     * Unlike a single {@code apply}, a patch that fails part way is not rolled back; the replay
+     * stops with the document as the failing operation left it.
+     */
+    public static class PatchReplay {
+
+        private static final JsonProvider JSON = JsonProvider.provider();
+
+        private Object root;
+        private long patches, operations;
+
+        public PatchReplay(JsonValue document) {
+            this.root = mutable(document);
+        }
+
+        /**
+         * Read a JSON Lines stream of patches, skipping blank lines.
+         */
+        public static Stream<JsonArray> readLines(BufferedReader in) {
+            return in.lines().filter(line -> !line.isBlank()).map(line -> JSON.createReader(new StringReader(line)).readArray());
+        }
+
+        /**
+         * Read a patch from each file, in the order given.
+         */
+        public static Stream<JsonArray> readFiles(List<Path> files) {
+            return files.stream().map(file -> {
+                try {
+                    return readJson(file).asJsonArray();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        /**
+         * Apply every patch in order, handing a snapshot to checkpoints after every n patches and
+         * after the last one. With n of zero no snapshots are taken.
+         *
+         * @throws JsonException naming the (1 based) patch that failed
+         */
+        public PatchReplay replay(Stream<JsonArray> patches, int n, Consumer<JsonValue> checkpoints) {
+            long start = this.patches;
+            patches.forEachOrdered(patch -> {
+                Stats.record(this.patches + 1);
+                Stats.count("records", 1);
+                try (Stats.Phase phase = Stats.phase("apply")) {
+                    apply(patch);
+                } catch (JsonException | ClassCastException | NullPointerException e) {
+                    throw new JsonException("patch " + (this.patches + 1) + ": " + e.getMessage(), e);
+                }
+                if (n > 0 && this.patches % n == 0) {
+                    checkpoints.accept(snapshot());
+                }
+            });
+            Stats.record(0);
+            if (n > 0 && (this.patches % n != 0 || this.patches == start)) {
+                checkpoints.accept(snapshot());
+            }
+            return this;
+        }
+
+        /**
+         * Apply one patch to the document.
+         */
+        public PatchReplay apply(JsonArray patch) {
+            for (JsonValue operation : patch) {
+                apply(operation.asJsonObject());
+                operations++;
+            }
+            patches++;
+            return this;
+        }
+
+        /**
+         * The current state of the document as an immutable value.
+         */
+        public JsonValue snapshot() {
+            return immutable(root);
+        }
+
+        public long getPatches() {
+            return patches;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        private void apply(JsonObject operation) {
+            String op = operation.getString("op");
+            String[] path = pointer(operation.getString("path"));
+            switch (op) {
+                case "add" -> add(path, mutable(operation.get("value")));
+                case "remove" -> remove(path);
+                case "replace" -> replace(path, mutable(operation.get("value")));
+                case "move" -> {
+                    String from = operation.getString("from");
+                    if (!from.equals(operation.getString("path"))) {
+                        if (operation.getString("path").startsWith(from + "/")) {
+                            throw new JsonException("cannot move " + from + " into itself");
+                        }
+                        add(path, remove(pointer(from)));
+                    }
+                }
+                case "copy" -> add(path, mutable(immutable(get(pointer(operation.getString("from")), -1))));
+                case "test" -> {
+                    if (!immutable(get(path, -1)).equals(operation.get("value"))) {
+                        throw new JsonException("test failed at " + operation.getString("path"));
+                    }
+                }
+                default -> throw new JsonException("unknown op " + op);
+            }
+        }
+
+        private void add(String[] path, Object value) {
+            if (path.length == 0) {
+                root = value;
+                return;
+            }
+            Object parent = get(path, path.length - 1);
+            String name = path[path.length - 1];
+            if (parent instanceof Map) {
+                map(parent).put(name, value);
+            } else if (parent instanceof List) {
+                List<Object> list = list(parent);
+                list.add("-".equals(name) ? list.size() : index(name, list.size() + 1), value);
+            } else {
+                throw new JsonException("cannot add to a scalar at /" + String.join("/", path));
+            }
+        }
+
+        private Object remove(String[] path) {
+            if (path.length == 0) {
+                throw new JsonException("cannot remove the document root");
+            }
+            Object parent = get(path, path.length - 1);
+            String name = path[path.length - 1];
+            if (parent instanceof Map) {
+                if (!map(parent).containsKey(name)) {
+                    throw new JsonException("no member " + name + " to remove");
+                }
+                return map(parent).remove(name);
+            } else if (parent instanceof List) {
+                return list(parent).remove(index(name, list(parent).size()));
+            }
+            throw new JsonException("cannot remove from a scalar at /" + String.join("/", path));
+        }
+
+        private void replace(String[] path, Object value) {
+            if (path.length == 0) {
+                root = value;
+                return;
+            }
+            Object parent = get(path, path.length - 1);
+            String name = path[path.length - 1];
+            if (parent instanceof Map) {
+                if (!map(parent).containsKey(name)) {
+                    throw new JsonException("no member " + name + " to replace");
+                }
+                map(parent).put(name, value);
+            } else if (parent instanceof List) {
+                list(parent).set(index(name, list(parent).size()), value);
+            } else {
+                throw new JsonException("cannot replace in a scalar at /" + String.join("/", path));
+            }
+        }
+
+        /**
+         * The node at the first depth segments of path, or the whole path when depth is negative.
+         */
+        private Object get(String[] path, int depth) {
+            Object node = root;
+            for (int i = 0; i < (depth < 0 ? path.length : depth); i++) {
+                if (node instanceof Map) {
+                    if (!map(node).containsKey(path[i])) {
+                        throw new JsonException("no member " + path[i]);
+                    }
+                    node = map(node).get(path[i]);
+                } else if (node instanceof List) {
+                    node = list(node).get(index(path[i], list(node).size()));
+                } else {
+                    throw new JsonException("no member " + path[i] + " in a scalar");
+                }
+            }
+            return node;
+        }
+
+        private static int index(String name, int bound) {
+            if (!name.matches("0|[1-9]\\d{0,9}")) {
+                throw new JsonException("invalid array index " + name);
+            }
+            int index = Integer.parseInt(name);
+            if (index >= bound) {
+                throw new JsonException("array index " + name + " out of range");
+            }
+            return index;
+        }
+
+        static String[] pointer(String path) {
+            if (path.isEmpty()) {
+                return new String[0];
+            }
+            if (path.charAt(0) != '/') {
+                throw new JsonException("invalid JSON Pointer " + path);
+            }
+            String[] segments = path.substring(1).split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = segments[i].replace("~1", "/").replace("~0", "~");
+            }
+            return segments;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Map<String, Object> map(Object node) {
+            return (Map<String, Object>) node;
+        }
+
+        @SuppressWarnings("unchecked")
+        static List<Object> list(Object node) {
+            return (List<Object>) node;
+        }
+
+        private static Object mutable(JsonValue value) {
+            if (value == null) {
+                throw new JsonException("missing value");
+            }
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    value.asJsonObject().forEach((name, member) -> map.put(name, mutable(member)));
+                    return map;
+                }
+                case ARRAY -> {
+                    List<Object> list = new ArrayList<>(value.asJsonArray().size());
+                    value.asJsonArray().forEach(element -> list.add(mutable(element)));
+                    return list;
+                }
+                default -> {
+                    return value;
+                }
+            }
+        }
+
+        static JsonValue immutable(Object node) {
+            if (node instanceof Map) {
+                JsonObjectBuilder builder = JSON.createObjectBuilder();
+                map(node).forEach((name, member) -> builder.add(name, immutable(member)));
+                return builder.build();
+            } else if (node instanceof List) {
+                JsonArrayBuilder builder = JSON.createArrayBuilder();
+                list(node).forEach(element -> builder.add(immutable(element)));
+                return builder.build();
+            }
+            return (JsonValue) node;
+        }
+    }
+
+    /**
+     * Diffs two large collections of records, such as yesterday's and today's exports, matching
+     * records by a key instead of by position and without holding either collection in memory.
+     *
+     * Each side is sorted by key externally: records are gathered into runs of up to
+     * {@link #spillSize(long)} bytes, and each full run is sorted and spilled to a temporary
+     * file; the runs are then merged. The two sorted sides are joined on key, and every record
+     * only on the target side is reported as added, every one only on the source side as removed
+     * and every pair that differs as changed, with an RFC 6902 patch ({@link Operation#PATCH}) or
+     * an RFC 7396 merge patch ({@link Operation#DIFF}) between them. Records whose text is equal
+     * are skipped without being parsed.
+     *
+     * Keys are read by skip-scanning each record, so only the key itself is decoded while sorting.
+     * Records without the key are keyed by their whole value, so they are only ever added or
+     * removed. Records sharing a key are paired in the order they appear.
+     */
+    public static class RecordDiff {
+
+        public static final long DEFAULT_SPILL_SIZE = 64L << 20;
+
+        /** Bytes of bookkeeping assumed per record held in a run, on top of its text. */
+        private static final int RECORD_OVERHEAD = 64;
+
+        /**
+         * Supplies the records of one side, each as a value at an offset of a LazyJson.
+         */
+        @FunctionalInterface
+        public interface Records {
+            void read(ObjLongConsumer<LazyJson> record) throws IOException;
+        }
+
+        private final Operation operation;
+        private final String key;
+        private final JsonDiff diff;
+        private long spillSize = DEFAULT_SPILL_SIZE;
+        private long added, removed, changed, unchanged;
+
+        /**
+         * @param operation {@link Operation#PATCH} or {@link Operation#DIFF}, the kind of patch reported for changed records
+         * @param key       a member name, or a JSON Pointer within each record such as {@code /_source/recordid};
+         *                  null to key records by their whole value
+         */
+        public RecordDiff(Operation operation, String key, JsonDiff diff) {
+            if (operation != Operation.PATCH && operation != Operation.DIFF) {
+                throw new IllegalArgumentException("records are diffed by patch or diff, not " + operation);
+            }
+            this.operation = operation;
+            this.key = key == null || key.isEmpty() || key.startsWith("/")
+                ? key
+                : "/" + key.replace("~", "~0").replace("/", "~1");
+            this.diff = diff;
+        }
+
+        /**
+         * The bytes of records each side holds in memory before a sorted run is spilled to disk.
+         */
+        public RecordDiff spillSize(long bytes) {
+            this.spillSize = bytes;
+            return this;
+        }
+
+        /**
+         * The records of a JSON Lines file, or stdin if the path is "-", skipping blank lines.
+         */
+        public static Records lines(String inputFile) {
+            return record -> {
+                try (BufferedReader in = openLineReader(inputFile, UTF8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            LazyJson json = new LazyJson(line.getBytes(StandardCharsets.UTF_8));
+                            record.accept(json, json.skipWhitespace(0));
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * The elements of the array at a JSON Pointer in a document, scanned from a memory mapping.
+         */
+        public static Records elements(Path input, String pointer) {
+            return record -> {
+                LazyJson json = LazyJson.of(input);
+                long pos = json.find(pointer);
+                if (pos < 0 || json.at(pos) != '[') {
+                    throw new JsonException(pointer + " is not an array in " + input);
+                }
+                json.elements(pos, offset -> record.accept(json, offset));
+            };
+        }
+
+        /**
+         * Write one line per added, removed or changed record to the sink:
+         * {@code {"op":"add","key":..,"value":..}}, {@code {"op":"remove","key":..}} or
+         * {@code {"op":"change","key":..,"patch":..}}, in the order of the keys' JSON text.
+         */
+        public RecordDiff diff(Records source, Records target, Consumer<JsonValue> sink) throws IOException {
+            Path spill = Files.createTempDirectory("jsont-records");
+            try (Sorted before = sort(source, spill.resolve("source")); Sorted after = sort(target, spill.resolve("target"))) {
+                try (Stats.Phase phase = Stats.phase(operation.name().toLowerCase())) {
+                    while (before.peek() != null || after.peek() != null) {
+                        int order = before.peek() == null
+                            ? 1
+                            : after.peek() == null ? -1 : before.peek().key().compareTo(after.peek().key());
+                        if (order < 0) {
+                            Keyed record = before.next();
+                            sink.accept(change("remove", record.key()).build());
+                            removed++;
+                        } else if (order > 0) {
+                            Keyed record = after.next();
+                            sink.accept(change("add", record.key()).add("value", parse(record.text())).build());
+                            added++;
+                        } else {
+                            Keyed from = before.next(), to = after.next();
+                            JsonValue patch = from.text().equals(to.text()) ? null : patch(parse(from.text()), parse(to.text()));
+                            if (patch == null) {
+                                unchanged++;
+                            } else {
+                                sink.accept(change("change", from.key()).add("patch", patch).build());
+                                changed++;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(spill)) {
+                    for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            return this;
+        }
+
+        public long getAdded() {
+            return added;
+        }
+
+        public long getRemoved() {
+            return removed;
+        }
+
+        public long getChanged() {
+            return changed;
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * The patch between two records, or null when they are equal.
+         */
+        private JsonValue patch(JsonValue from, JsonValue to) {
+            if (from.equals(to)) {
+                return null;
+            }
+            return operation == Operation.DIFF ? JsonDiff.mergePatch(from, to) : diff.diff(from, to);
+        }
+
+        private static JsonObjectBuilder change(String op, String key) {
+            return Json.createObjectBuilder().add("op", op).add("key", parse(key));
+        }
+
+        private static JsonValue parse(String text) {
+            try (JsonReader reader = Json.createReader(new StringReader(text))) {
+                return reader.readValue();
+            }
+        }
+
+        /**
+         * Read one side into sorted runs, spilling each full run to a file under dir.
+         */
+        private Sorted sort(Records records, Path dir) throws IOException {
+            List<Keyed> run = new ArrayList<>();
+            List<Path> runs = new ArrayList<>();
+            long[] size = { 0, 0 };
+            try (Stats.Phase phase = Stats.phase("sort")) {
+                read(records, (json, pos) -> {
+                    size[1]++;
+                    Stats.count("records", 1);
+                    Keyed record;
+                    try {
+                        long end = json.skipValue(pos);
+                        String text = json.decode(pos, end);
+                        long at = key == null ? -1 : json.find(pos, key);
+                        record = new Keyed(at < 0 ? json.parse(pos).toString() : json.parse(at).toString(), text);
+                    } catch (JsonException e) {
+                        throw new JsonException("record " + size[1] + ": " + e.getMessage(), e);
+                    }
+                    run.add(record);
+                    size[0] += 2L * (record.key().length() + record.text().length()) + RECORD_OVERHEAD;
+                    if (size[0] >= spillSize) {
+                        runs.add(spill(run, dir, runs.size()));
+                        run.clear();
+                        size[0] = 0;
+                    }
+                });
+                if (runs.isEmpty()) {
+                    run.sort(Comparator.comparing(Keyed::key));
+                    return new Sorted(run.iterator(), List.of());
+                }
+                if (!run.isEmpty()) {
+                    runs.add(spill(run, dir, runs.size()));
+                }
+            }
+            Stats.count("spills", runs.size());
+            return new Sorted(null, runs);
+        }
+
+        private static void read(Records records, ObjLongConsumer<LazyJson> record) throws IOException {
+            try {
+                records.read(record);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static Path spill(List<Keyed> run, Path dir, int index) {
+            run.sort(Comparator.comparing(Keyed::key));
+            try {
+                Path file = Files.createDirectories(dir).resolve(index + ".run");
+                try (
+                    DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(file), LINE_BUFFER_SIZE)
+                    )
+                ) {
+                    for (Keyed record : run) {
+                        write(out, record.key());
+                        write(out, record.text());
+                    }
+                }
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void write(DataOutputStream out, String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private record Keyed(String key, String text) {}
+
+        /**
+         * One side in key order: an in-memory run, or a merge of the spilled runs. Records with equal
+         * keys come out in the order they were read.
+         */
+        private static class Sorted implements AutoCloseable {
+
+            private final Iterator<Keyed> memory;
+            private final List<DataInputStream> files = new ArrayList<>();
+            // the next record of each run with the index of its run, ordered by key then run
+            private final PriorityQueue<Map.Entry<Keyed, Integer>> heads = new PriorityQueue<>(
+                Comparator.comparing((Map.Entry<Keyed, Integer> head) -> head.getKey().key()).thenComparing(Map.Entry::getValue)
+            );
+            private Keyed next;
+
+            Sorted(Iterator<Keyed> memory, List<Path> runs) throws IOException {
+                this.memory = memory;
+                for (Path run : runs) {
+                    files.add(new DataInputStream(new BufferedInputStream(Files.newInputStream(run), LINE_BUFFER_SIZE)));
+                    advance(files.size() - 1);
+                }
+                next = read();
+            }
+
+            Keyed peek() {
+                return next;
+            }
+
+            Keyed next() throws IOException {
+                Keyed current = next;
+                next = read();
+                return current;
+            }
+
+            private Keyed read() throws IOException {
+                if (memory != null) {
+                    return memory.hasNext() ? memory.next() : null;
+                }
+                Map.Entry<Keyed, Integer> head = heads.poll();
+                if (head == null) {
+                    return null;
+                }
+                advance(head.getValue());
+                return head.getKey();
+            }
+
+            private void advance(int run) throws IOException {
+                DataInputStream in = files.get(run);
+                String key = read(in);
+                if (key != null) {
+                    heads.add(Map.entry(new Keyed(key, read(in)), run));
+                }
+            }
+
+            private static String read(DataInputStream in) throws IOException {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (DataInputStream in : files) {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deep merges any number of documents in one pass, for combining files such as the
+     * native-image {@code *-config.json} metadata gathered from many runs.
+     *
+     * Objects are merged as by an RFC 7396 merge patch: later members replace earlier ones,
+     * a null member removes one and nested objects merge. Arrays are concatenated. Optionally
+     * elements equal to one already present are dropped ({@link #dedupe()}), and the elements of
+     * chosen arrays are identified by a key and merged with the earlier element of the same key
+     * ({@link #key(String, String)}). The result is built in one mutable tree, so each operand
+     * is walked once however many there are.
+     */
+    public static class JsonJoin {
+
+        private final boolean dedupe;
+        private final Map<String, String> keys;
+
+        public JsonJoin() {
+            this(false, Map.of());
+        }
+
+        private JsonJoin(boolean dedupe, Map<String, String> keys) {
+            this.dedupe = dedupe;
+            this.keys = keys;
+        }
+
+        /**
+         * Drop array elements equal to one already in the array, compared by content hash.
+         */
+        public JsonJoin dedupe() {
+            return new JsonJoin(true, keys);
+        }
+
+        /**
+         * Merge elements of the arrays at arrayPath that have the same key, as for {@link JsonDiff#key}.
+         */
+        public JsonJoin key(String arrayPath, String key) {
+            Map<String, String> keys = new LinkedHashMap<>(this.keys);
+            keys.put(arrayPath, key);
+            return new JsonJoin(dedupe, keys);
+        }
+
+        /**
+         * Parse a comma separated list of arrayPath:key pairs, as given to the --key option.
+         */
+        public JsonJoin keys(String spec) {
+            return new JsonJoin(dedupe, JsonDiff.parseKeys(keys, spec));
+        }
+
+        /**
+         * Read the files in parallel, returning the documents in the order given.
+         */
+        public static List<JsonStructure> readAll(List<Path> files, Charset charset) {
+            return files
+                .parallelStream()
+                .map(file -> {
+                    try {
+                        return readJson(file, charset);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (JsonException e) {
+                        throw new JsonException(file + ": " + e.getMessage(), e);
+                    }
+                })
+                .toList();
+        }
+
+        /**
+         * Merge the operands in order, later operands taking precedence.
+         */
+        public JsonValue join(List<? extends JsonValue> operands) {
+            Map<Object, ArrayIndex> indexes = new IdentityHashMap<>();
+            Object result = null;
+            for (JsonValue operand : operands) {
+                result = merge(result, operand, "", indexes);
+            }
+            return result == null ? JsonValue.NULL : PatchReplay.immutable(result);
+        }
+
+        /**
+         * The elements already in an array of the result, by key and by content hash.
+         */
+        private record ArrayIndex(Map<JsonValue, Integer> keyed, Map<Long, List<JsonValue>> hashed) {}
+
+        private Object merge(Object target, JsonValue value, String path, Map<Object, ArrayIndex> indexes) {
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    Map<String, Object> map = target instanceof Map ? PatchReplay.map(target) : new LinkedHashMap<>();
+                    for (Map.Entry<String, JsonValue> member : value.asJsonObject().entrySet()) {
+                        if (member.getValue().getValueType() == JsonValue.ValueType.NULL) {
+                            map.remove(member.getKey());
+                        } else {
+                            String child = path + "/" + JsonDiff.escape(member.getKey());
+                            map.put(member.getKey(), merge(map.get(member.getKey()), member.getValue(), child, indexes));
+                        }
+                    }
+                    return map;
+                }
+                case ARRAY -> {
+                    List<Object> list = target instanceof List ? PatchReplay.list(target) : new ArrayList<>();
+                    ArrayIndex index = indexes.computeIfAbsent(list, l -> new ArrayIndex(new HashMap<>(), new HashMap<>()));
+                    String key = JsonDiff.keyFor(keys, path);
+                    for (JsonValue element : value.asJsonArray()) {
+                        JsonValue id = key == null ? null : keyOf(element, key);
+                        if (id != null) {
+                            Integer at = index.keyed.get(id);
+                            if (at != null) {
+                                list.set(at, merge(list.get(at), element, path + "/" + at, indexes));
+                                continue;
+                            }
+                            index.keyed.put(id, list.size());
+                        } else if (dedupe) {
+                            List<JsonValue> seen = index.hashed.computeIfAbsent(JsonDiff.contentHash(element), h -> new ArrayList<>(1));
+                            if (seen.contains(element)) {
+                                continue;
+                            }
+                            seen.add(element);
+                        }
+                        list.add(merge(null, element, path + "/" + list.size(), indexes));
+                    }
+                    return list;
+                }
+                default -> {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * The value of an element's key, a member name or a JSON Pointer, or null when it has none.
+         */
+        private static JsonValue keyOf(JsonValue element, String key) {
+            JsonValue node = element;
+            for (String segment : key.startsWith("/") ? key.substring(1).split("/", -1) : new String[] { key }) {
+                String name = segment.replace("~1", "/").replace("~0", "~");
+                if (node.getValueType() == JsonValue.ValueType.OBJECT && node.asJsonObject().containsKey(name)) {
+                    node = node.asJsonObject().get(name);
+                } else if (
+                    node.getValueType() == JsonValue.ValueType.ARRAY &&
+                    name.matches("\\d+") &&
+                    Integer.parseInt(name) < node.asJsonArray().size()
+                ) {
+                    node = node.asJsonArray().get(Integer.parseInt(name));
+                } else {
+                    return null;
+                }
+            }
+            return node;
+        }
+    }
+
+    /**
+     * The raw UTF-8 bytes of a document, memory mapped from a file or read into direct buffers.
+     *
+     * The bytes are held as power-of-two sized chunks addressed by long offsets, so documents
+     * larger than the 2GB limit of a single buffer can be mapped. Reads use absolute positions and
+     * never move a buffer's position, so one instance can be shared by many reader threads.
+     */
+    public static class JsonBytes {
+
+        /** Files are mapped in 1GB windows. */
+        static final int MAP_CHUNK_SHIFT = 30;
+
+        /** Streams are read into 16MB direct buffers. */
+        static final int READ_CHUNK_SHIFT = 24;
+
+        private final ByteBuffer[] chunks;
+        private final int shift;
+        private final long mask, length;
+
+        private JsonBytes(ByteBuffer[] chunks, int shift, long length) {
+            this.chunks = chunks;
+            this.shift = shift;
+            this.mask = (1L << shift) - 1;
+            this.length = length;
+        }
+
+        public static JsonBytes wrap(byte[] bytes) {
+            return new JsonBytes(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, 31, bytes.length);
+        }
+
+        public static JsonBytes map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer[] chunks = new ByteBuffer[(int) ((size + (1L << MAP_CHUNK_SHIFT) - 1) >>> MAP_CHUNK_SHIFT)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long) i << MAP_CHUNK_SHIFT;
+                    chunks[i] = channel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        start,
+                        Math.min(1L << MAP_CHUNK_SHIFT, size - start)
+                    );
+                }
+                return new JsonBytes(chunks, MAP_CHUNK_SHIFT, size);
+            }
+        }
+
+        /**
+         * Read a stream to the end into direct buffers, bypassing any charset decoding.
+         */
+        public static JsonBytes read(InputStream in) throws IOException {
+            ReadableByteChannel channel = Channels.newChannel(in);
+            List<ByteBuffer> chunks = new ArrayList<>();
+            long length = 0;
+            while (true) {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(1 << READ_CHUNK_SHIFT);
+                int read;
+                while (chunk.hasRemaining() && (read = channel.read(chunk)) >= 0) {
+                    length += read;
+                }
+                chunk.flip();
+                if (chunk.hasRemaining()) {
+                    chunks.add(chunk);
+                }
+                if (chunk.limit() < chunk.capacity()) {
+                    return new JsonBytes(chunks.toArray(ByteBuffer[]::new), READ_CHUNK_SHIFT, length);
+                }
+            }
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public byte get(long pos) {
+            return chunks[(int) (pos >>> shift)].get((int) (pos & mask));
+        }
+
+        /**
+         * Decode the UTF-8 bytes in [from, to), which may span chunks.
+         */
+        public String decode(long from, long to) {
+            int len = Math.toIntExact(to - from);
+            ByteBuffer chunk = chunks[(int) (from >>> shift)];
+            int offset = (int) (from & mask);
+            if (chunk.hasArray() && offset + len <= chunk.limit()) {
+                return new String(chunk.array(), chunk.arrayOffset() + offset, len, StandardCharsets.UTF_8);
+            }
+            byte[] copy = new byte[len];
+            copy(from, copy, 0, len);
+            return new String(copy, StandardCharsets.UTF_8);
+        }
+
+        private void copy(long from, byte[] target, int off, int len) {
+            while (len > 0) {
+                ByteBuffer chunk = chunks[(int) (from >>> shift)];
+                int offset = (int) (from & mask);
+                int n = Math.min(len, chunk.limit() - offset);
+                chunk.get(offset, target, off, n);
+                from += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * A stream over the bytes, for JSON-P readers that detect the encoding from the bytes themselves.
+         */
+        public InputStream newInputStream() {
+            return newInputStream(0, length);
+        }
+
+        /**
+         * A stream over the bytes from offset from up to, but not including, offset to.
+         */
+        public InputStream newInputStream(long from, long to) {
+            return new InputStream() {
+                private long pos = from;
+
+                @Override
+                public int read() {
+                    return pos < to ? get(pos++) & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (pos >= to) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(len, to - pos);
+                    copy(pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return (int) Math.min(Integer.MAX_VALUE, to - pos);
+                }
+            };
+        }
+    }
+
+    /**
+     * Document formats, chosen by --input-format and --output-format or by file extension.
+     */
+    public static enum Format {
+        JSON,
+        CBOR,
+        MSGPACK;
+
+        /**
+         * The format named by an option, or else the one a file's extension implies: {@code .cbor}
+         * for CBOR, {@code .msgpack} or {@code .mpk} for MessagePack and text JSON for anything else,
+         * including stdin and stdout.
+         */
+        public static Format of(String name, String file) {
+            if (name != null && !name.isEmpty()) {
+                try {
+                    return valueOf(name.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown format " + name + ", expected one of " + Arrays.toString(values()));
+                }
+            }
+            String lower = file.toLowerCase();
+            return lower.endsWith(".cbor") ? CBOR : lower.endsWith(".msgpack") || lower.endsWith(".mpk") ? MSGPACK : JSON;
+        }
+
+        public static Format of(Path file) {
+            return of(null, file.toString());
+        }
+
+        public JsonValue read(InputStream in) throws IOException {
+            return switch (this) {
+                case JSON -> {
+                    try (JsonReader reader = Json.createReader(in)) {
+                        yield reader.readValue();
+                    }
+                }
+                case CBOR -> BinaryJson.readCbor(in);
+                case MSGPACK -> BinaryJson.readMessagePack(in);
+            };
+        }
+
+        /**
+         * Write a value in this format; text JSON is written compact.
+         */
+        public void write(JsonValue value, OutputStream out) throws IOException {
+            switch (this) {
+                case JSON -> Json.createWriter(out).write(value);
+                case CBOR -> BinaryJson.writeCbor(value, out);
+                case MSGPACK -> BinaryJson.writeMessagePack(value, out);
+            }
+        }
+    }
+
+    /**
+     * CBOR (RFC 8949) and MessagePack codecs for JSON values, so documents can be read and written
+     * without formatting or parsing numbers and strings as text.
+     *
+     * Values are mapped the way RFC 8949 suggests for converting to JSON: byte strings and
+     * extension types become base64url strings, tags other than bignums are dropped, undefined
+     * becomes null and map keys that are not strings become their JSON text. Integers are written
+     * in their shortest form and floating point numbers as 32 bit floats when that is exact.
+     * Indefinite length CBOR items are read but never written.
+     *
+     * Numbers with a fraction or exponent are written as 64 bit floats, and so are MessagePack
+     * integers beyond 64 bits, which it has no other type for; both may lose digits. CBOR writes
+     * such integers as bignums. A number beyond the range of a double cannot be written.
+     */
+    public static class BinaryJson {
+
+        private static final JsonProvider PROVIDER = JsonProvider.provider();
+        private static final int BREAK = 0xff;
+        private static final BigInteger UINT64 = BigInteger.ONE.shiftLeft(64);
+
+        private BinaryJson() {}
+
+        public static JsonValue readCbor(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in, LINE_BUFFER_SIZE));
+            return cbor(data, data.readUnsignedByte());
+        }
+
+        public static JsonValue readMessagePack(InputStream in) throws IOException {
+            return msgpack(new DataInputStream(new BufferedInputStream(in, LINE_BUFFER_SIZE)));
+        }
+
+        public static void writeCbor(JsonValue value, OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, LINE_BUFFER_SIZE));
+            cbor(value, data);
+            data.flush();
+        }
+
+        public static void writeMessagePack(JsonValue value, OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, LINE_BUFFER_SIZE));
+            msgpack(value, data);
+            data.flush();
+        }
+
+        // ── CBOR ─────────────────────────────────────────────────────────────
+
+        private static JsonValue cbor(DataInputStream in, int initial) throws IOException {
+            int major = initial >>> 5, info = initial & 0x1f;
+            switch (major) {
+                case 0 -> {
+                    return unsigned(argument(in, info, false));
+                }
+                case 1 -> {
+                    long n = argument(in, info, false);
+                    return n >= 0 ? PROVIDER.createValue(-1 - n) : PROVIDER.createValue(unsignedBig(n).not());
+                }
+                case 2 -> {
+                    return base64(bytes(in, major, info));
+                }
+                case 3 -> {
+                    return PROVIDER.createValue(new String(bytes(in, major, info), StandardCharsets.UTF_8));
+                }
+                case 4 -> {
+                    JsonArrayBuilder array = PROVIDER.createArrayBuilder();
+                    long n = argument(in, info, true);
+                    for (long i = 0; n < 0 || i < n; i++) {
+                        int next = in.readUnsignedByte();
+                        if (n < 0 && next == BREAK) {
+                            break;
+                        }
+                        array.add(cbor(in, next));
+                    }
+                    return array.build();
+                }
+                case 5 -> {
+                    JsonObjectBuilder object = PROVIDER.createObjectBuilder();
+                    long n = argument(in, info, true);
+                    for (long i = 0; n < 0 || i < n; i++) {
+                        int next = in.readUnsignedByte();
+                        if (n < 0 && next == BREAK) {
+                            break;
+                        }
+                        object.add(key(cbor(in, next)), cbor(in, in.readUnsignedByte()));
+                    }
+                    return object.build();
+                }
+                case 6 -> {
+                    long tag = argument(in, info, false);
+                    int next = in.readUnsignedByte();
+                    if ((tag == 2 || tag == 3) && next >>> 5 == 2) {
+                        BigInteger n = new BigInteger(1, bytes(in, 2, next & 0x1f));
+                        return PROVIDER.createValue(tag == 2 ? n : n.not());
+                    }
+                    return cbor(in, next);
+                }
+                default -> {
+                    return switch (info) {
+                        case 20 -> JsonValue.FALSE;
+                        case 21 -> JsonValue.TRUE;
+                        case 22, 23 -> JsonValue.NULL;
+                        case 25 -> number(Float.float16ToFloat((short) in.readUnsignedShort()));
+                        case 26 -> number(in.readFloat());
+                        case 27 -> number(in.readDouble());
+                        default -> throw new JsonException("Unsupported CBOR simple value " + info);
+                    };
+                }
+            }
+        }
+
+        /**
+         * The argument of an item's initial byte, or -1 for an indefinite length when allowed.
+         */
+        private static long argument(DataInputStream in, int info, boolean indefinite) throws IOException {
+            return switch (info) {
+                case 24 -> in.readUnsignedByte();
+                case 25 -> in.readUnsignedShort();
+                case 26 -> in.readInt() & 0xffffffffL;
+                case 27 -> in.readLong();
+                case 31 -> {
+                    if (!indefinite) {
+                        throw new JsonException("Unexpected indefinite length CBOR item");
+                    }
+                    yield -1;
+                }
+                default -> {
+                    if (info > 27) {
+                        throw new JsonException("Invalid CBOR additional information " + info);
+                    }
+                    yield info;
+                }
+            };
+        }
+
+        private static byte[] bytes(DataInputStream in, int major, int info) throws IOException {
+            long n = argument(in, info, true);
+            if (n >= 0) {
+                return read(in, n);
+            }
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            for (int next = in.readUnsignedByte(); next != BREAK; next = in.readUnsignedByte()) {
+                if (next >>> 5 != major) {
+                    throw new JsonException("Invalid chunk in indefinite length CBOR string");
+                }
+                chunks.write(read(in, argument(in, next & 0x1f, false)));
+            }
+            return chunks.toByteArray();
+        }
+
+        private static void cbor(JsonValue value, DataOutputStream out) throws IOException {
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    JsonObject object = value.asJsonObject();
+                    head(out, 5, object.size());
+                    for (Map.Entry<String, JsonValue> member : object.entrySet()) {
+                        text(out, 3, member.getKey());
+                        cbor(member.getValue(), out);
+                    }
+                }
+                case ARRAY -> {
+                    JsonArray array = value.asJsonArray();
+                    head(out, 4, array.size());
+                    for (JsonValue element : array) {
+                        cbor(element, out);
+                    }
+                }
+                case STRING -> text(out, 3, ((JsonString) value).getString());
+                case NUMBER -> {
+                    JsonNumber number = (JsonNumber) value;
+                    if (!number.isIntegral()) {
+                        floating(out, number, 0xfa, 0xfb);
+                        return;
+                    }
+                    BigInteger n = number.bigIntegerValue();
+                    if (n.bitLength() < 64) {
+                        long l = n.longValue();
+                        head(out, l < 0 ? 1 : 0, l < 0 ? -1 - l : l);
+                    } else {
+                        out.write(0xc0 | (n.signum() < 0 ? 3 : 2));
+                        byte[] magnitude = (n.signum() < 0 ? n.not() : n).toByteArray();
+                        int skip = magnitude[0] == 0 ? 1 : 0;
+                        head(out, 2, magnitude.length - skip);
+                        out.write(magnitude, skip, magnitude.length - skip);
+                    }
+                }
+                case TRUE -> out.write(0xf5);
+                case FALSE -> out.write(0xf4);
+                case NULL -> out.write(0xf6);
+            }
+        }
+
+        private static void head(DataOutputStream out, int major, long n) throws IOException {
+            int type = major << 5;
+            if (n < 24) {
+                out.write(type | (int) n);
+            } else if (n < 1 << 8) {
+                out.write(type | 24);
+                out.write((int) n);
+            } else if (n < 1 << 16) {
+                out.write(type | 25);
+                out.writeShort((int) n);
+            } else if (n < 1L << 32) {
+                out.write(type | 26);
+                out.writeInt((int) n);
+            } else {
+                out.write(type | 27);
+                out.writeLong(n);
+            }
+        }
+
+        // ── MessagePack ──────────────────────────────────────────────────────
+
+        private static JsonValue msgpack(DataInputStream in) throws IOException {
+            int b = in.readUnsignedByte();
+            if (b <= 0x7f || b >= 0xe0) {
+                return PROVIDER.createValue((byte) b);
+            }
+            if (b <= 0x8f) {
+                return map(in, b & 0x0f);
+            }
+            if (b <= 0x9f) {
+                return array(in, b & 0x0f);
+            }
+            if (b <= 0xbf) {
+                return PROVIDER.createValue(new String(read(in, b & 0x1f), StandardCharsets.UTF_8));
+            }
+            return switch (b) {
+                case 0xc0 -> JsonValue.NULL;
+                case 0xc2 -> JsonValue.FALSE;
+                case 0xc3 -> JsonValue.TRUE;
+                case 0xc4 -> base64(read(in, in.readUnsignedByte()));
+                case 0xc5 -> base64(read(in, in.readUnsignedShort()));
+                case 0xc6 -> base64(read(in, in.readInt() & 0xffffffffL));
+                case 0xc7 -> extension(in, in.readUnsignedByte());
+                case 0xc8 -> extension(in, in.readUnsignedShort());
+                case 0xc9 -> extension(in, in.readInt() & 0xffffffffL);
+                case 0xca -> number(in.readFloat());
+                case 0xcb -> number(in.readDouble());
+                case 0xcc -> PROVIDER.createValue(in.readUnsignedByte());
+                case 0xcd -> PROVIDER.createValue(in.readUnsignedShort());
+                case 0xce -> PROVIDER.createValue(in.readInt() & 0xffffffffL);
+                case 0xcf -> unsigned(in.readLong());
+                case 0xd0 -> PROVIDER.createValue(in.readByte());
+                case 0xd1 -> PROVIDER.createValue(in.readShort());
+                case 0xd2 -> PROVIDER.createValue(in.readInt());
+                case 0xd3 -> PROVIDER.createValue(in.readLong());
+                case 0xd4, 0xd5, 0xd6, 0xd7, 0xd8 -> extension(in, 1 << (b - 0xd4));
+                case 0xd9 -> PROVIDER.createValue(new String(read(in, in.readUnsignedByte()), StandardCharsets.UTF_8));
+                case 0xda -> PROVIDER.createValue(new String(read(in, in.readUnsignedShort()), StandardCharsets.UTF_8));
+                case 0xdb -> PROVIDER.createValue(new String(read(in, in.readInt() & 0xffffffffL), StandardCharsets.UTF_8));
+                case 0xdc -> array(in, in.readUnsignedShort());
+                case 0xdd -> array(in, in.readInt() & 0xffffffffL);
+                case 0xde -> map(in, in.readUnsignedShort());
+                case 0xdf -> map(in, in.readInt() & 0xffffffffL);
+                default -> throw new JsonException("Invalid MessagePack type 0x" + Integer.toHexString(b));
+            };
+        }
+
+        private static JsonValue array(DataInputStream in, long n) throws IOException {
+            JsonArrayBuilder array = PROVIDER.createArrayBuilder();
+            for (long i = 0; i < n; i++) {
+                array.add(msgpack(in));
+            }
+            return array.build();
+        }
+
+        private static JsonValue map(DataInputStream in, long n) throws IOException {
+            JsonObjectBuilder object = PROVIDER.createObjectBuilder();
+            for (long i = 0; i < n; i++) {
+                object.add(key(msgpack(in)), msgpack(in));
+            }
+            return object.build();
+        }
+
+        private static JsonValue extension(DataInputStream in, long n) throws IOException {
+            in.readByte(); // type
+            return base64(read(in, n));
+        }
+
+        private static void msgpack(JsonValue value, DataOutputStream out) throws IOException {
+            switch (value.getValueType()) {
+                case OBJECT -> {
+                    JsonObject object = value.asJsonObject();
+                    size(out, object.size(), 0x80, 0xde);
+                    for (Map.Entry<String, JsonValue> member : object.entrySet()) {
+                        string(out, member.getKey());
+                        msgpack(member.getValue(), out);
+                    }
+                }
+                case ARRAY -> {
+                    JsonArray array = value.asJsonArray();
+                    size(out, array.size(), 0x90, 0xdc);
+                    for (JsonValue element : array) {
+                        msgpack(element, out);
+                    }
+                }
+                case STRING -> string(out, ((JsonString) value).getString());
+                case NUMBER -> {
+                    JsonNumber number = (JsonNumber) value;
+                    BigInteger n = number.isIntegral() ? number.bigIntegerValue() : null;
+                    if (n == null || n.bitLength() > 64 || (n.signum() < 0 && n.bitLength() > 63)) {
+                        floating(out, number, 0xca, 0xcb);
+                    } else if (n.bitLength() == 64) {
+                        out.write(0xcf);
+                        out.writeLong(n.longValue());
+                    } else {
+                        integer(out, n.longValue());
+                    }
+                }
+                case TRUE -> out.write(0xc3);
+                case FALSE -> out.write(0xc2);
+                case NULL -> out.write(0xc0);
+            }
+        }
+
+        private static void integer(DataOutputStream out, long n) throws IOException {
+            if (n >= -32 && n <= 0x7f) {
+                out.write((int) n & 0xff);
+            } else if (n >= 0) {
+                if (n <= 0xff) {
+                    out.write(0xcc);
+                    out.write((int) n);
+                } else if (n <= 0xffff) {
+                    out.write(0xcd);
+                    out.writeShort((int) n);
+                } else if (n <= 0xffffffffL) {
+                    out.write(0xce);
+                    out.writeInt((int) n);
+                } else {
+                    out.write(0xcf);
+                    out.writeLong(n);
+                }
+            } else if (n >= Byte.MIN_VALUE) {
+                out.write(0xd0);
+                out.write((int) n);
+            } else if (n >= Short.MIN_VALUE) {
+                out.write(0xd1);
+                out.writeShort((int) n);
+            } else if (n >= Integer.MIN_VALUE) {
+                out.write(0xd2);
+                out.writeInt((int) n);
+            } else {
+                out.write(0xd3);
+                out.writeLong(n);
+            }
+        }
+
+        private static void string(DataOutputStream out, String s) throws IOException {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length < 32) {
+                out.write(0xa0 | utf8.length);
+            } else if (utf8.length <= 0xff) {
+                out.write(0xd9);
+                out.write(utf8.length);
+            } else if (utf8.length <= 0xffff) {
+                out.write(0xda);
+                out.writeShort(utf8.length);
+            } else {
+                out.write(0xdb);
+                out.writeInt(utf8.length);
+            }
+            out.write(utf8);
+        }
+
+        /**
+         * Write an array or map header: a fix type for up to 15 entries, else the 16 or 32 bit type after it.
+         */
+        private static void size(DataOutputStream out, int n, int fix, int wide) throws IOException {
+            if (n < 16) {
+                out.write(fix | n);
+            } else if (n <= 0xffff) {
+                out.write(wide);
+                out.writeShort(n);
+            } else {
+                out.write(wide + 1);
+                out.writeInt(n);
+            }
+        }
+
+        // ── shared ───────────────────────────────────────────────────────────
+
+        private static void text(DataOutputStream out, int major, String s) throws IOException {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            head(out, major, utf8.length);
+            out.write(utf8);
+        }
+
+        /**
+         * Write a number as a float, failing rather than writing an infinity the readers would reject.
+         */
+        private static void floating(DataOutputStream out, JsonNumber number, int single, int dbl) throws IOException {
+            double d = number.doubleValue();
+            if (!Double.isFinite(d)) {
+                throw new JsonException(number + " is out of range for a 64 bit float");
+            }
+            if ((float) d == d) {
+                out.write(single);
+                out.writeFloat((float) d);
+            } else {
+                out.write(dbl);
+                out.writeDouble(d);
+            }
+        }
+
+        private static byte[] read(DataInputStream in, long n) throws IOException {
+            if (n > Integer.MAX_VALUE - 8) {
+                throw new JsonException("String of " + n + " bytes is too long");
+            }
+            byte[] bytes = in.readNBytes((int) n);
+            if (bytes.length < n) {
+                throw new EOFException("Expected " + n + " bytes but found " + bytes.length);
+            }
+            return bytes;
+        }
+
+        private static JsonValue number(double d) {
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                throw new JsonException(d + " cannot be represented in JSON");
+            }
+            return PROVIDER.createValue(d);
+        }
+
+        private static JsonValue unsigned(long n) {
+            return n >= 0 ? PROVIDER.createValue(n) : PROVIDER.createValue(unsignedBig(n));
+        }
+
+        private static BigInteger unsignedBig(long n) {
+            return BigInteger.valueOf(n).add(UINT64);
+        }
+
+        private static JsonValue base64(byte[] bytes) {
+            return PROVIDER.createValue(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+        }
+
+        private static String key(JsonValue key) {
+            return key instanceof JsonString string ? string.getString() : key.toString();
+        }
+    }
+
+    /**
+     * A view of a JSON document that decodes values only when a template reads them.
+     *
+     * Objects and arrays are exposed to JS as proxies holding the offset of their opening bracket.
+     * The first access to a member or element indexes that one level by skip-scanning the raw
+     * bytes (matching brackets and strings without building anything), and each member is decoded
+     * only when read, then cached. Subtrees a template never touches are never decoded.
+     *
+     * With {@link #typedArrays(int)} large arrays holding only numbers are instead decoded in one
+     * pass into an off-heap buffer and bound as a JS {@code Int32Array} or {@code Float64Array}.
+     */
+    public static class LazyJson {
+
+        /** Arrays with fewer elements than this stay proxies under {@code --typed-arrays}. */
+        public static final int DEFAULT_TYPED_ARRAY_SIZE = 1024;
+
+        private static final Object UNRESOLVED = new Object();
+
+        private static final Object SELECTED = new Object();
+
+        private static final JsonReaderFactory READERS = Json.createReaderFactory(null);
+
+        private final JsonBytes bytes;
+        private int typedArrays;
+
+        public LazyJson(byte[] bytes) {
+            this(JsonBytes.wrap(bytes));
+        }
+
+        public LazyJson(JsonBytes bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * View a file through a memory mapping, so only the pages the template reads are loaded.
+         */
+        public static LazyJson of(Path input) throws IOException {
+            return new LazyJson(JsonBytes.map(input));
+        }
+
+        /**
+         * Bind arrays of at least this many elements that hold only numbers as typed arrays:
+         * {@code Int32Array} when every element is a 32 bit integer, {@code Float64Array} otherwise.
+         * Typed arrays are created in the current context, so the root is read inside one.
+         */
+        public LazyJson typedArrays(int threshold) {
+            this.typedArrays = threshold;
+            return this;
+        }
+
+        /**
+         * The root value: a proxy for an object or array, a typed array, or a decoded scalar.
+         */
+        public Object root() {
+            return value(0);
+        }
+
+        byte at(long pos) {
+            return bytes.get(pos);
+        }
+
+        long length() {
+            return bytes.length();
+        }
+
+        Object value(long pos) {
+            pos = skipWhitespace(pos);
+            if (pos >= length()) {
+                throw new JsonException("Unexpected end of input at offset " + pos);
+            }
+            return switch (at(pos)) {
+                case '{' -> new LazyObject(this, pos);
+                case '[' -> typedArrays > 0 ? array(pos) : new LazyArray(this, pos);
+                case '"' -> string(pos);
+                case 't' -> expect(pos, "true", Boolean.TRUE);
+                case 'f' -> expect(pos, "false", Boolean.FALSE);
+                case 'n' -> expect(pos, "null", null);
+                default -> number(pos);
+            };
+        }
+
+        long skipWhitespace(long pos) {
+            while (pos < length()) {
+                byte b = at(pos);
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    break;
+                }
+                pos++;
+            }
+            return pos;
+        }
+
+        /**
+         * Return the offset just past the value starting at pos, without decoding it.
+         */
+        long skipValue(long pos) {
+            pos = skipWhitespace(pos);
+            byte b = at(pos);
+            if (b == '"') {
+                return skipString(pos);
+            }
+            if (b == '{' || b == '[') {
+                int depth = 0;
+                do {
+                    b = at(pos);
+                    if (b == '"') {
+                        pos = skipString(pos);
+                        continue;
+                    }
+                    if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                    pos++;
+                } while (depth > 0);
+                return pos;
+            }
+            while (pos < length()) {
+                b = at(pos);
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    break;
+                }
+                pos++;
+            }
+            return pos;
+        }
+
+        private long skipString(long pos) {
+            for (pos++; ; pos++) {
+                byte b = at(pos);
+                if (b == '\\') {
+                    pos++;
+                } else if (b == '"') {
+                    return pos + 1;
+                }
+            }
+        }
+
+        String string(long pos) {
+            long end = skipString(pos) - 1;
+            StringBuilder text = null;
+            long run = pos + 1;
+            for (long i = run; i < end; i++) {
+                if (at(i) != '\\') {
+                    continue;
+                }
+                if (text == null) {
+                    text = new StringBuilder((int) (end - pos));
+                }
+                text.append(decode(run, i));
+                char escape = (char) at(++i);
+                switch (escape) {
+                    case 'b' -> text.append('\b');
+                    case 'f' -> text.append('\f');
+                    case 'n' -> text.append('\n');
+                    case 'r' -> text.append('\r');
+                    case 't' -> text.append('\t');
+                    case 'u' -> {
+                        text.append((char) Integer.parseInt(decode(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    default -> text.append(escape);
+                }
+                run = i + 1;
+            }
+            return text == null ? decode(pos + 1, end) : text.append(decode(run, end)).toString();
+        }
+
+        String decode(long from, long to) {
+            return bytes.decode(from, to);
+        }
+
+        private Object number(long pos) {
+            long end = skipValue(pos);
+            String text = decode(pos, end);
+            try {
+                if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0 && text.length() < 18) {
+                    long value = Long.parseLong(text);
+                    if (value == (int) value) {
+                        return (int) value;
+                    }
+                    // JS numbers are doubles; larger longs would surface as BigInt
+                    return Math.abs(value) <= 1L << 53 ? Long.valueOf(value) : Double.valueOf(value);
+                }
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw new JsonException("Invalid value '" + text + "' at offset " + pos, e);
+            }
+        }
+
+        /**
+         * A typed array over the array at pos when it is large enough and holds only numbers, else a proxy.
+         * The first pass counts the elements and checks their types, the second decodes them.
+         */
+        private Object array(long pos) {
+            byte first = at(skipWhitespace(pos + 1));
+            if (first != '-' && (first < '0' || first > '9')) {
+                return new LazyArray(this, pos);
+            }
+            long[] count = { 0 };
+            boolean[] numbers = { true }, ints = { true };
+            elements(pos, offset -> {
+                byte b = at(offset);
+                if (b != '-' && (b < '0' || b > '9')) {
+                    numbers[0] = false;
+                } else if (ints[0] && integer(offset, skipValue(offset)) == Long.MIN_VALUE) {
+                    ints[0] = false;
+                }
+                count[0]++;
+            });
+            int width = ints[0] ? Integer.BYTES : Double.BYTES;
+            if (!numbers[0] || count[0] < typedArrays || count[0] * width > Integer.MAX_VALUE) {
+                return new LazyArray(this, pos);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) (count[0] * width)).order(ByteOrder.nativeOrder());
+            int[] index = { 0 };
+            elements(pos, offset -> {
+                long end = skipValue(offset);
+                if (ints[0]) {
+                    buffer.putInt(index[0]++ * width, (int) integer(offset, end));
+                } else {
+                    buffer.putDouble(index[0]++ * width, decimal(offset, end));
+                }
+            });
+            Value js = Context.getCurrent().getBindings("js");
+            return js.getMember(ints[0] ? "Int32Array" : "Float64Array")
+                .newInstance(js.getMember("ArrayBuffer").newInstance(buffer));
+        }
+
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+        };
+
+        /**
+         * The number written between pos and end. Plain decimals of up to 15 digits are exact as
+         * digits / 10^scale, since both operands are exact doubles, so only the rest are parsed as text.
+         */
+        private double decimal(long pos, long end) {
+            boolean negative = at(pos) == '-';
+            long mantissa = 0;
+            int digits = 0, scale = -1;
+            for (long i = negative ? pos + 1 : pos; i < end; i++) {
+                byte b = at(i);
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (scale >= 0) {
+                        scale++;
+                    }
+                } else if (b == '.' && scale < 0) {
+                    scale = 0;
+                } else {
+                    digits = Integer.MAX_VALUE;
+                    break;
+                }
+            }
+            if (digits > 0 && digits <= 15 && scale != 0) {
+                double value = scale < 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+                return negative ? -value : value;
+            }
+            String text = decode(pos, end);
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw new JsonException("Invalid value '" + text + "' at offset " + pos, e);
+            }
+        }
+
+        /**
+         * The 32 bit integer written between pos and end, or Long.MIN_VALUE when it is anything else,
+         * including -0, which only a double can hold.
+         */
+        private long integer(long pos, long end) {
+            boolean negative = at(pos) == '-';
+            long i = negative ? pos + 1 : pos, value = 0;
+            if (i == end || end - i > 10) {
+                return Long.MIN_VALUE;
+            }
+            for (; i < end; i++) {
+                byte b = at(i);
+                if (b < '0' || b > '9') {
+                    return Long.MIN_VALUE;
+                }
+                value = value * 10 + (b - '0');
+            }
+            value = negative ? -value : value;
+            return value != (int) value || (negative && value == 0) ? Long.MIN_VALUE : value;
+        }
+
+        private Object expect(long pos, String literal, Object value) {
+            if (pos + literal.length() > length() || !literal.equals(decode(pos, pos + literal.length()))) {
+                throw new JsonException("Invalid value at offset " + pos + ", expected " + literal);
+            }
+            return value;
+        }
+
+        private long expect(long pos, char c) {
+            pos = skipWhitespace(pos);
+            if (pos >= length() || at(pos) != c) {
+                throw new JsonException("Expected '" + c + "' at offset " + pos);
+            }
+            return pos + 1;
+        }
+
+        /**
+         * The offset of the value at a JSON Pointer, found by skip-scanning, or -1 when there is none.
+         */
+        long find(String pointer) {
+            return find(skipWhitespace(0), pointer);
+        }
+
+        /**
+         * The offset of the value at a JSON Pointer relative to the value at pos, or -1 when there is none.
+         */
+        long find(long pos, String pointer) {
+            for (String segment : PatchReplay.pointer(pointer)) {
+                long[] found = { -1, 0 };
+                if (at(pos) == '{') {
+                    members(pos, (key, offset) -> {
+                        if (found[0] < 0 && key.equals(segment)) {
+                            found[0] = offset;
+                        }
+                    });
+                } else if (at(pos) == '[' && segment.matches("0|[1-9]\\d{0,9}")) {
+                    long index = Long.parseLong(segment);
+                    elements(pos, offset -> {
+                        if (found[1]++ == index) {
+                            found[0] = offset;
+                        }
+                    });
+                }
+                if (found[0] < 0) {
+                    return -1;
+                }
+                pos = found[0];
+            }
+            return pos;
+        }
+
+        /**
+         * Project the document onto the given JSON Pointers: a copy holding only the values they
+         * point at, each at its own path. Everything else is skipped by scanning its brackets and
+         * strings, without building any objects. Elements before a selected array index are null,
+         * and pointers that match nothing are left out.
+         */
+        public JsonValue select(List<String> pointers) {
+            Map<String, Object> selection = new HashMap<>();
+            for (String pointer : pointers) {
+                String[] segments = PatchReplay.pointer(pointer);
+                if (segments.length == 0) {
+                    return parse(skipWhitespace(0));
+                }
+                Map<String, Object> node = selection;
+                for (int i = 0; i < segments.length - 1 && node != null; i++) {
+                    Object child = node.computeIfAbsent(segments[i], segment -> new HashMap<String, Object>());
+                    node = child == SELECTED ? null : PatchReplay.map(child);
+                }
+                if (node != null) {
+                    node.put(segments[segments.length - 1], SELECTED);
+                }
+            }
+            JsonValue selected = select(skipWhitespace(0), selection);
+            return selected == null ? JsonValue.EMPTY_JSON_OBJECT : selected;
+        }
+
+        /**
+         * The selected parts of the value at pos, or null when it is not a structure.
+         */
+        private JsonValue select(long pos, Map<String, Object> selection) {
+            if (at(pos) == '{') {
+                JsonObjectBuilder object = Json.createObjectBuilder();
+                members(pos, (key, offset) -> {
+                    JsonValue value = select(offset, selection.get(key));
+                    if (value != null) {
+                        object.add(key, value);
+                    }
+                });
+                return object.build();
+            }
+            if (at(pos) == '[') {
+                JsonArrayBuilder array = Json.createArrayBuilder();
+                // next element index and the number of elements added so far
+                long[] index = { 0, 0 };
+                elements(pos, offset -> {
+                    JsonValue value = select(offset, selection.get(Long.toString(index[0]++)));
+                    if (value != null) {
+                        for (; index[1] < index[0] - 1; index[1]++) {
+                            array.addNull();
+                        }
+                        array.add(value);
+                        index[1]++;
+                    }
+                });
+                return array.build();
+            }
+            return null;
+        }
+
+        private JsonValue select(long pos, Object selected) {
+            if (selected == null) {
+                return null;
+            }
+            return selected == SELECTED ? parse(pos) : select(pos, PatchReplay.map(selected));
+        }
+
+        /**
+         * Decode the value at pos into JSON-P objects.
+         */
+        JsonValue parse(long pos) {
+            try (JsonReader reader = READERS.createReader(bytes.newInputStream(pos, skipValue(pos)), StandardCharsets.UTF_8)) {
+                return reader.readValue();
+            }
+        }
+
+        /**
+         * Visit the members of the object at pos as (key, value offset) pairs.
+         */
+        void members(long pos, ObjLongConsumer<String> member) {
+            pos = expect(pos, '{');
+            pos = skipWhitespace(pos);
+            if (at(pos) == '}') {
+                return;
+            }
+            while (true) {
+                pos = skipWhitespace(pos);
+                if (at(pos) != '"') {
+                    throw new JsonException("Expected a member name at offset " + pos);
+                }
+                String key = string(pos);
+                pos = expect(skipString(pos), ':');
+                pos = skipWhitespace(pos);
+                member.accept(key, pos);
+                pos = skipWhitespace(skipValue(pos));
+                if (at(pos) == '}') {
+                    return;
+                }
+                pos = expect(pos, ',');
+            }
+        }
+
+        /**
+         * Visit the offsets of the elements of the array at pos.
+         */
+        void elements(long pos, LongConsumer element) {
+            pos = expect(pos, '[');
+            pos = skipWhitespace(pos);
+            if (at(pos) == ']') {
+                return;
+            }
+            while (true) {
+                pos = skipWhitespace(pos);
+                element.accept(pos);
+                pos = skipWhitespace(skipValue(pos));
+                if (at(pos) == ']') {
+                    return;
+                }
+                pos = expect(pos, ',');
+            }
+        }
+
+        /**
+         * An object or array proxy. Until it, or anything read from it, is assigned to it converts
+         * back to JSON-P by decoding its bytes, so numbers keep exactly the digits they were written with.
+         */
+        abstract static class Node {
+
+            final LazyJson json;
+            final long pos;
+            private Node parent;
+            private boolean modified;
+
+            Node(LazyJson json, long pos) {
+                this.json = json;
+                this.pos = pos;
+            }
+
+            /**
+             * Track a value read from this node. Typed arrays can be written to unseen, so count as modified.
+             */
+            Object adopt(Object value) {
+                if (value instanceof Node node) {
+                    node.parent = this;
+                } else if (value instanceof Value) {
+                    modify();
+                }
+                return value;
+            }
+
+            void modify() {
+                for (Node node = this; node != null && !node.modified; node = node.parent) {
+                    node.modified = true;
+                }
+            }
+
+            /**
+             * The decoded value, or null once modified.
+             */
+            JsonValue unmodified() {
+                return modified ? null : json.parse(pos);
+            }
+        }
+
+        private static class LazyObject extends Node implements ProxyObject {
+
+            private Map<String, Object> members;
+
+            LazyObject(LazyJson json, long pos) {
+                super(json, pos);
+            }
+
+            private Map<String, Object> members() {
+                if (members == null) {
+                    Map<String, Object> index = new LinkedHashMap<>();
+                    json.members(pos, (key, offset) -> index.put(key, new Unresolved(offset)));
+                    members = index;
+                }
+                return members;
+            }
+
+            @Override
+            public Object getMember(String key) {
+                Object value = members().get(key);
+                if (value instanceof Unresolved unresolved) {
+                    value = adopt(json.value(unresolved.offset()));
+                    members.put(key, value);
+                }
+                return value;
+            }
+
+            @Override
+            public Object getMemberKeys() {
+                return ProxyArray.fromList(new ArrayList<>(members().keySet()));
+            }
+
+            @Override
+            public boolean hasMember(String key) {
+                return members().containsKey(key);
+            }
+
+            @Override
+            public void putMember(String key, Value value) {
+                members().put(key, value);
+                modify();
+            }
+
+            @Override
+            public boolean removeMember(String key) {
+                if (!members().containsKey(key)) {
+                    return false;
+                }
+                members.remove(key);
+                modify();
+                return true;
+            }
+        }
+
+        private record Unresolved(long offset) {}
+
+        /**
+         * Indexed into parallel offset and value arrays; copied into a list, like {@code ArrayView},
+         * the first time the template grows or shrinks it.
+         */
+        private static class LazyArray extends Node implements ProxyArray {
+
+            private long[] offsets;
+            private Object[] values;
+            private List<Object> elements;
+
+            LazyArray(LazyJson json, long pos) {
+                super(json, pos);
+            }
+
+            private Object[] values() {
+                if (values == null) {
+                    long[][] index = { new long[16] };
+                    int[] size = { 0 };
+                    json.elements(pos, offset -> {
+                        if (size[0] == index[0].length) {
+                            index[0] = Arrays.copyOf(index[0], size[0] * 2);
+                        }
+                        index[0][size[0]++] = offset;
+                    });
+                    offsets = Arrays.copyOf(index[0], size[0]);
+                    values = new Object[size[0]];
+                    Arrays.fill(values, UNRESOLVED);
+                }
+                return values;
+            }
+
+            private List<Object> elements() {
+                if (elements == null) {
+                    Object[] values = values();
+                    elements = new ArrayList<>(values.length);
+                    for (int i = 0; i < values.length; i++) {
+                        elements.add(values[i] == UNRESOLVED ? new Unresolved(offsets[i]) : values[i]);
+                    }
+                    offsets = null;
+                    this.values = null;
+                }
+                return elements;
+            }
+
+            @Override
+            public Object get(long index) {
+                if (elements != null) {
+                    if (index < 0 || index >= elements.size()) {
+                        throw new ArrayIndexOutOfBoundsException((int) index);
+                    }
+                    Object value = elements.get((int) index);
+                    if (value instanceof Unresolved unresolved) {
+                        value = adopt(json.value(unresolved.offset()));
+                        elements.set((int) index, value);
+                    }
+                    return value;
+                }
+                Object[] values = values();
+                if (index < 0 || index >= values.length) {
+                    throw new ArrayIndexOutOfBoundsException((int) index);
+                }
+                Object value = values[(int) index];
+                if (value == UNRESOLVED) {
+                    value = adopt(json.value(offsets[(int) index]));
+                    values[(int) index] = value;
+                }
+                return value;
+            }
+
+            @Override
+            public void set(long index, Value value) {
+                if (index < 0 || index > Integer.MAX_VALUE - 8) {
+                    throw new ArrayIndexOutOfBoundsException((int) index);
+                }
+                if (elements == null && index < values().length) {
+                    values[(int) index] = value;
+                } else {
+                    List<Object> elements = elements();
+                    while (elements.size() <= index) {
+                        elements.add(null);
+                    }
+                    elements.set((int) index, value);
+                }
+                modify();
+            }
+
+            @Override
+            public boolean remove(long index) {
+                List<Object> elements = elements();
+                if (index < 0 || index >= elements.size()) {
+                    return false;
+                }
+                elements.remove((int) index);
+                modify();
+                return true;
+            }
+
+            @Override
+            public long getSize() {
+                return elements != null ? elements.size() : values().length;
+            }
+        }
+    }
+
+    /**
+     * Read a template or document from a file, or from the classpath when no such file exists.
+     * A template named with a leading {@code @} is the copy embedded in a native binary.
+     */
+    static String readText(Path templateFile) throws IOException {
+        String embedded = EmbeddedTemplates.get(templateFile.toString());
+        if (embedded != null) {
+            return embedded;
+        }
+        if (Files.exists(templateFile)) {
+            return Files.readString(templateFile);
+        }
+        try (InputStream in = ClassLoader.getSystemClassLoader().getResourceAsStream(templateFile.toString())) {
+            if (in == null) {
+                throw new NoSuchFileException(templateFile.toString());
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static JsonStructure structure(JsonValue value, String input) {
+        if (value instanceof JsonStructure structure) {
+            return structure;
+        }
+        throw new JsonException(input + ": expected an object or array but was " + value.getValueType());
+    }
+
+    static JsonStructure readJson(Reader input) {
+        try (JsonReader reader = Json.createReader(input)) {
+            return reader.read();
+        }
+    }
+
+    static JsonStructure readJson(Path input) throws IOException {
+        return readJson(input, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a JSON file, memory mapping it and parsing the bytes directly when it is UTF-8.
+     */
+    static JsonStructure readJson(Path input, Charset charset) throws IOException {
+        Stats.count("inputBytes", Files.size(input));
+        Format format = Format.of(input);
+        if (format != Format.JSON) {
+            return structure(format.read(JsonBytes.map(input).newInputStream()), input.toString());
+        }
+        if (!StandardCharsets.UTF_8.equals(charset)) {
+            return readJson(Files.newBufferedReader(input, charset));
+        }
+        try (JsonReader reader = Json.createReader(JsonBytes.map(input).newInputStream())) {
+            return reader.read();
         }
-        JsonReader jreader = Json.createReader(reader);
-        return new GraalsonSource(jreader);
     }
 }
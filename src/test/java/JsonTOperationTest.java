@@ -1,17 +1,37 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import au.com.devnull.graalson.trax.GraalsonResult;
 import au.com.devnull.graalson.trax.GraalsonSource;
 import au.com.devnull.graalson.trax.GraalsonTransformerFactory;
 import au.com.devnull.graalson.trax.GraalsonTransformerFactory.JsonMode;
 import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
 import jakarta.json.JsonStructure;
+import jakarta.json.JsonValue;
 import jakarta.json.JsonWriter;
 import jakarta.json.JsonWriterFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerFactory;
@@ -182,4 +202,380 @@ public class JsonTOperationTest {
 
         JSONAssert.assertEquals(expected.toString(), applyOutput, JSONCompareMode.STRICT_ORDER);
     }
+
+    // ── hash-indexed diff engine ────────────────────────────────────────
+
+    @Test
+    void testHashDiffRoundTrip() throws Exception, JSONException {
+        JsonStructure original = readResource("operations/patch/default.json");
+        JsonStructure target = readResource("operations/patch/default_1.json");
+
+        JsonArray patch = JsonT.JsonDiff.patch(original, target);
+        JSONAssert.assertEquals(target.toString(), Json.createPatch(patch).apply(original).toString(), true);
+
+        JsonStructure mergeOriginal = readResource("operations/merge/merge_orig.json");
+        JsonStructure mergeResult = readResource("operations/merge/merge_result.json");
+        assertEquals(
+            Json.createMergeDiff(mergeOriginal, mergeResult).toJsonValue(),
+            JsonT.JsonDiff.mergePatch(mergeOriginal, mergeResult)
+        );
+    }
+
+    @Test
+    void testHashDiffArrays() {
+        JsonArray source = array("a", "b", "c", "d", "e", "f");
+        assertPatch(source, array("x", "a", "b", "c", "d", "e", "f"), 1);
+        assertPatch(source, array("a", "b", "d", "e", "f"), 1);
+        assertPatch(source, array("a", "e", "b", "c", "d", "f"), 1);
+        assertPatch(source, array("f", "e", "d", "c", "b", "a"), 5);
+        assertPatch(source, array("a", "b", "x", "d", "y", "e", "f", "b"), 3);
+        assertPatch(source, array(), 6);
+        assertPatch(array(), source, 6);
+
+        JsonArray nested = Json.createArrayBuilder()
+            .add(Json.createObjectBuilder().add("id", 1).add("tags", array("p", "q")))
+            .add(Json.createObjectBuilder().add("id", 2))
+            .build();
+        JsonArray changed = Json.createArrayBuilder()
+            .add(Json.createObjectBuilder().add("id", 1).add("tags", array("p", "r")))
+            .add(Json.createObjectBuilder().add("id", 2))
+            .build();
+        JsonArray patch = assertPatch(nested, changed, 1);
+        assertEquals("/0/tags/1", patch.getJsonObject(0).getString("path"));
+    }
+
+    @Test
+    void testKeyedDiff() {
+        JsonObject source = Json.createObjectBuilder()
+            .add("items", Json.createArrayBuilder()
+                .add(Json.createObjectBuilder().add("id", 1).add("v", "a"))
+                .add(Json.createObjectBuilder().add("id", 2).add("v", "b"))
+                .add(Json.createObjectBuilder().add("id", 3).add("v", "c")))
+            .build();
+        JsonObject target = Json.createObjectBuilder()
+            .add("items", Json.createArrayBuilder()
+                .add(Json.createObjectBuilder().add("id", 0).add("v", "z"))
+                .add(Json.createObjectBuilder().add("id", 1).add("v", "a2"))
+                .add(Json.createObjectBuilder().add("id", 3).add("v", "c"))
+                .add(Json.createObjectBuilder().add("id", 2).add("v", "b2")))
+            .build();
+
+        assertPatch(new JsonT.JsonDiff(), source, target, 5);
+        JsonArray patch = assertPatch(new JsonT.JsonDiff().key("/items", "id"), source, target, 4);
+        assertEquals("add", patch.getJsonObject(0).getString("op"));
+        assertEquals("/items/0", patch.getJsonObject(0).getString("path"));
+
+        assertPatch(new JsonT.JsonDiff().keys("/*:/id"), source, target, 4);
+        assertPatch(new JsonT.JsonDiff().key("/items", "missing"), source, target, 5);
+    }
+
+    @Test
+    void testDiffShuffledArrays() {
+        Random random = new Random(11);
+        List<JsonObject> elements = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            elements.add(Json.createObjectBuilder().add("id", i % 1500).add("v", random.nextInt(3)).build());
+        }
+        JsonArray source = Json.createArrayBuilder(elements).build();
+        Collections.shuffle(elements, random);
+        JsonArray shuffled = Json.createArrayBuilder(elements.subList(100, elements.size())).add(array("new")).build();
+        Collections.reverse(elements);
+        JsonArray reversed = Json.createArrayBuilder(elements).build();
+
+        assertPatch(new JsonT.JsonDiff(), source, shuffled, -1);
+        assertPatch(new JsonT.JsonDiff().key("", "id"), source, shuffled, -1);
+        assertPatch(new JsonT.JsonDiff(), source, reversed, -1);
+        assertPatch(new JsonT.JsonDiff().key("", "id"), source, reversed, -1);
+    }
+
+    @Test
+    void testLcsDiff() {
+        JsonArray source = array("a", "b", "c", "d", "e", "f");
+        JsonT.JsonDiff lcs = new JsonT.JsonDiff().lcs();
+        assertPatch(lcs, source, array("a", "e", "b", "c", "d", "f"), 2);
+        assertPatch(lcs, source, array("a", "x", "c", "d", "y", "f"), 2);
+        assertPatch(lcs, source, array("x", "a", "b", "c", "d", "e", "f"), 1);
+        assertPatch(lcs, source, array(), 6);
+        assertPatch(lcs, array(), source, 6);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            JsonArray a = randomArray(random), b = randomArray(random);
+            assertPatch(lcs, a, b, -1);
+            assertPatch(new JsonT.JsonDiff(), a, b, -1);
+        }
+    }
+
+    @Test
+    void testPatchReplay() {
+        Random random = new Random(7);
+        List<JsonStructure> states = new ArrayList<>();
+        List<JsonArray> patches = new ArrayList<>();
+        JsonStructure state = Json.createObjectBuilder().add("items", randomArray(random)).build();
+        states.add(state);
+        for (int i = 0; i < 50; i++) {
+            JsonStructure next = Json.createObjectBuilder()
+                .add("items", randomArray(random))
+                .add("n", i)
+                .add("nested", Json.createObjectBuilder().add("tags", randomArray(random)))
+                .build();
+            patches.add(new JsonT.JsonDiff().lcs().diff(state, next));
+            states.add(state = next);
+        }
+        patches.add(Json.createArrayBuilder()
+            .add(Json.createObjectBuilder().add("op", "copy").add("from", "/items").add("path", "/copy"))
+            .add(Json.createObjectBuilder().add("op", "move").add("from", "/n").add("path", "/moved"))
+            .add(Json.createObjectBuilder().add("op", "add").add("path", "/copy/-").add("value", "end"))
+            .add(Json.createObjectBuilder().add("op", "test").add("path", "/moved").add("value", 49))
+            .build());
+        states.add(Json.createPatch(patches.get(patches.size() - 1)).apply(state));
+
+        List<JsonValue> checkpoints = new ArrayList<>();
+        JsonT.PatchReplay replay = new JsonT.PatchReplay(states.get(0)).replay(patches.stream(), 10, checkpoints::add);
+        assertEquals(states.get(states.size() - 1), replay.snapshot());
+        assertEquals(patches.size(), replay.getPatches());
+        assertEquals(6, checkpoints.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(states.get((i + 1) * 10), checkpoints.get(i));
+        }
+        assertEquals(replay.snapshot(), checkpoints.get(5));
+
+        JsonArray failing = Json.createArrayBuilder()
+            .add(Json.createObjectBuilder().add("op", "remove").add("path", "/missing"))
+            .build();
+        JsonException e = assertThrows(
+            JsonException.class,
+            () -> new JsonT.PatchReplay(states.get(0)).replay(Stream.of(patches.get(0), failing), 0, null)
+        );
+        assertTrue(e.getMessage().startsWith("patch 2: "), e.getMessage());
+    }
+
+    @Test
+    void testJoin() throws Exception {
+        JsonArray reflect1 = Json.createReader(new StringReader(
+            "[{\"name\":\"A\",\"fields\":[{\"name\":\"x\"}]},{\"name\":\"B\"}]"
+        )).readArray();
+        JsonArray reflect2 = Json.createReader(new StringReader(
+            "[{\"name\":\"B\"},{\"name\":\"A\",\"fields\":[{\"name\":\"y\"},{\"name\":\"x\"}]}]"
+        )).readArray();
+
+        JsonValue concatenated = new JsonT.JsonJoin().join(List.of(reflect1, reflect2));
+        assertEquals(4, concatenated.asJsonArray().size());
+
+        JsonValue deduped = new JsonT.JsonJoin().dedupe().join(List.of(reflect1, reflect2));
+        assertEquals(3, deduped.asJsonArray().size());
+
+        JsonValue keyed = new JsonT.JsonJoin().dedupe().key("", "name").join(List.of(reflect1, reflect2));
+        JSONAssert.assertEquals(
+            "[{\"name\":\"A\",\"fields\":[{\"name\":\"x\"},{\"name\":\"y\"}]},{\"name\":\"B\"}]",
+            keyed.toString(),
+            JSONCompareMode.STRICT
+        );
+
+        JsonStructure resources1 = Json.createReader(new StringReader(
+            "{\"resources\":{\"includes\":[{\"pattern\":\"a\"}]},\"bundles\":[],\"drop\":1,\"keep\":1}"
+        )).readObject();
+        JsonStructure resources2 = Json.createReader(new StringReader(
+            "{\"resources\":{\"includes\":[{\"pattern\":\"b\"},{\"pattern\":\"a\"}]},\"drop\":null,\"keep\":2}"
+        )).readObject();
+        JsonValue merged = new JsonT.JsonJoin().dedupe().join(List.of(resources1, resources2));
+        JSONAssert.assertEquals(
+            "{\"resources\":{\"includes\":[{\"pattern\":\"a\"},{\"pattern\":\"b\"}]},\"bundles\":[],\"keep\":2}",
+            merged.toString(),
+            JSONCompareMode.STRICT
+        );
+
+        assertEquals(concatenated, JsonT.Operation.JOIN.apply(reflect1, reflect2));
+    }
+
+    @Test
+    void testBinaryFormats() throws Exception {
+        // RFC 8949 appendix A and MessagePack spec examples
+        assertEquals(json("1000"), JsonT.BinaryJson.readCbor(bytes("1903e8")));
+        assertEquals(json("-1000"), JsonT.BinaryJson.readCbor(bytes("3903e7")));
+        assertEquals(json("18446744073709551616"), JsonT.BinaryJson.readCbor(bytes("c249010000000000000000")));
+        assertEquals(json("-18446744073709551617"), JsonT.BinaryJson.readCbor(bytes("c349010000000000000000")));
+        assertEquals(json("1.5"), JsonT.BinaryJson.readCbor(bytes("f93e00")));
+        assertEquals(json("[1,[2,3],[4,5]]"), JsonT.BinaryJson.readCbor(bytes("9f018202039f0405ffff")));
+        assertEquals(json("\"streaming\""), JsonT.BinaryJson.readCbor(bytes("7f657374726561646d696e67ff")));
+        assertEquals(json("{\"a\":1,\"b\":[2,3]}"), JsonT.BinaryJson.readCbor(bytes("a26161016162820203")));
+        assertThrows(JsonException.class, () -> JsonT.BinaryJson.readCbor(bytes("f97c00")));
+        assertEquals(
+            json("{\"compact\":true,\"schema\":0}"),
+            JsonT.BinaryJson.readMessagePack(bytes("82a7636f6d70616374c3a6736368656d6100"))
+        );
+        assertEquals("82a7636f6d70616374c3a6736368656d6100", hex(JsonT.Format.MSGPACK, json("{\"compact\":true,\"schema\":0}")));
+        assertEquals("a26161016162820203", hex(JsonT.Format.CBOR, json("{\"a\":1,\"b\":[2,3]}")));
+
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            longText.append((char) ('a' + i % 26));
+        }
+        JsonValue document = json(
+            "{\"ints\":[0,23,24,-1,-24,-25,127,128,-32,-33,255,256,65535,65536,-129,-32769,4294967296,-4294967297," +
+                "9223372036854775807,-9223372036854775808,18446744073709551615,123456789012345678901234567890]," +
+                "\"floats\":[1.5,0.1,-2.25E10,3.4028234663852886E38]," +
+                "\"text\":[\"\",\"ünïcødé ✓\",\"" + longText + "\"]," +
+                "\"nested\":{\"empty\":{},\"list\":[],\"flags\":[true,false,null]}}"
+        );
+        for (JsonT.Format format : JsonT.Format.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            format.write(document, out);
+            JsonValue read = format.read(new ByteArrayInputStream(out.toByteArray()));
+            JSONAssert.assertEquals(format.name(), document.toString(), read.toString(), JSONCompareMode.STRICT);
+        }
+        // a number beyond the range of a double fails rather than being written as an infinity
+        for (JsonT.Format format : List.of(JsonT.Format.CBOR, JsonT.Format.MSGPACK)) {
+            JsonException e = assertThrows(
+                JsonException.class,
+                () -> format.write(json("[1e400]"), new ByteArrayOutputStream())
+            );
+            assertEquals("1E+400 is out of range for a 64 bit float", e.getMessage());
+        }
+
+        // operations read binary operands and write the format of the output file's extension
+        Path dir = Files.createTempDirectory("binary");
+        Path source = dir.resolve("source.cbor"), target = dir.resolve("target.msgpack");
+        try (OutputStream out = Files.newOutputStream(source)) {
+            JsonT.Format.CBOR.write(json("{\"a\":1,\"b\":[1,2]}"), out);
+        }
+        try (OutputStream out = Files.newOutputStream(target)) {
+            JsonT.Format.MSGPACK.write(json("{\"a\":2,\"b\":[1,2,3]}"), out);
+        }
+        Path patch = dir.resolve("patch.cbor");
+        JsonT.main(new String[] { "patch", source.toString(), target.toString(), patch.toString() });
+        JsonT.main(new String[] { "apply", patch.toString(), source.toString(), dir.resolve("applied.mpk").toString() });
+        try (InputStream in = Files.newInputStream(dir.resolve("applied.mpk"))) {
+            assertEquals(json("{\"a\":2,\"b\":[1,2,3]}"), JsonT.Format.MSGPACK.read(in));
+        }
+    }
+
+    @Test
+    void testSelect() throws Exception {
+        String before = "{\"_shards\":{\"total\":5},\"hits\":{\"total\":3,\"hits\":[{\"_id\":\"a\",\"v\":1}," +
+            "{\"_id\":\"b\",\"v\":2},{\"_id\":\"c\",\"v\":3}]},\"aggregations\":{\"x\":[\"]}\",{\"y\":[1,2]}]}}";
+        JsonT.LazyJson lazy = new JsonT.LazyJson(before.getBytes(StandardCharsets.UTF_8));
+        assertEquals(
+            json("{\"hits\":{\"hits\":[{\"_id\":\"a\",\"v\":1},{\"_id\":\"b\",\"v\":2},{\"_id\":\"c\",\"v\":3}]}}"),
+            lazy.select(List.of("/hits/hits"))
+        );
+        // elements before a selected index are null, and pointers that match nothing are left out
+        assertEquals(
+            json("{\"_shards\":{\"total\":5},\"hits\":{\"hits\":[null,{\"v\":2}]},\"aggregations\":{\"x\":[null,{\"y\":[1,2]}]}}"),
+            lazy.select(List.of("/hits/hits/1/v", "/_shards", "/missing/x", "/aggregations/x/1", "/hits/hits/1/v/deeper"))
+        );
+        assertEquals(json(before), lazy.select(List.of("/hits", "")));
+
+        // diff and patch compare only the selected section, with paths into the whole document
+        Path dir = Files.createTempDirectory("select");
+        Path source = dir.resolve("before.json"), target = dir.resolve("after.json");
+        Files.writeString(source, before);
+        Files.writeString(target, before.replace("\"v\":2", "\"v\":5").replace("\"total\":5", "\"total\":6"));
+        Path patch = dir.resolve("patch.json");
+        JsonT.main(new String[] { "--select=/hits/hits", "patch", source.toString(), target.toString(), patch.toString() });
+        JSONAssert.assertEquals(
+            "[{\"op\":\"replace\",\"path\":\"/hits/hits/1/v\",\"value\":5}]",
+            Files.readString(patch),
+            JSONCompareMode.STRICT
+        );
+    }
+
+    @Test
+    void testRecordDiff() throws Exception {
+        Path dir = Files.createTempDirectory("records");
+        Path before = dir.resolve("before.ndjson"), after = dir.resolve("after.ndjson");
+        StringBuilder source = new StringBuilder(), target = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            source.append("{\"_source\":{\"recordid\":").append(i).append(",\"v\":1}}\n");
+        }
+        // shuffled, with 100 removed, 300 changed and 1 added, one with its members reordered
+        for (int i = 499; i >= 0; i--) {
+            if (i == 7) {
+                target.append("{\"_source\":{\"v\":1,\"recordid\":7}}\n\n");
+            } else if (i != 100) {
+                target.append("{\"_source\":{\"recordid\":").append(i).append(",\"v\":").append(i == 300 ? 2 : 1).append("}}\n");
+            }
+        }
+        target.append("{\"_source\":{\"recordid\":\"new\"}}\n");
+        Files.writeString(before, source);
+        Files.writeString(after, target);
+
+        // a spill size this small sorts every side through dozens of runs on disk
+        List<JsonValue> changes = new ArrayList<>();
+        JsonT.RecordDiff diff = new JsonT.RecordDiff(JsonT.Operation.PATCH, "/_source/recordid", new JsonT.JsonDiff())
+            .spillSize(1024)
+            .diff(JsonT.RecordDiff.lines(before.toString()), JsonT.RecordDiff.lines(after.toString()), changes::add);
+        assertEquals(1, diff.getAdded());
+        assertEquals(1, diff.getRemoved());
+        assertEquals(1, diff.getChanged());
+        assertEquals(498, diff.getUnchanged());
+        assertEquals(
+            // in the order of the keys' JSON text
+            List.of(
+                json("{\"op\":\"add\",\"key\":\"new\",\"value\":{\"_source\":{\"recordid\":\"new\"}}}"),
+                json("{\"op\":\"remove\",\"key\":100}"),
+                json("{\"op\":\"change\",\"key\":300,\"patch\":[{\"op\":\"replace\",\"path\":\"/_source/v\",\"value\":2}]}")
+            ),
+            changes
+        );
+
+        // the same records as array elements, reporting merge patches from the command line
+        Path document = dir.resolve("before.json"), output = dir.resolve("changes.ndjson");
+        Files.writeString(document, "{\"hits\":{\"hits\":[" + source.toString().strip().replace("\n", ",") + "]}}");
+        JsonT.main(new String[] {
+            "--records=/hits/hits", "--key=/_source/recordid", "diff", document.toString(), document.toString(), output.toString()
+        });
+        assertEquals("", Files.readString(output));
+        JsonT.main(new String[] { "--lines", "--key=/_source/recordid", "diff", before.toString(), after.toString(), output.toString() });
+        assertEquals(
+            "{\"op\":\"change\",\"key\":300,\"patch\":{\"_source\":{\"v\":2}}}",
+            Files.readAllLines(output).get(2)
+        );
+    }
+
+    private static JsonValue json(String text) {
+        return Json.createReader(new StringReader(text)).readValue();
+    }
+
+    private static InputStream bytes(String hex) {
+        return new ByteArrayInputStream(HexFormat.of().parseHex(hex));
+    }
+
+    private static String hex(JsonT.Format format, JsonValue value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.write(value, out);
+        return HexFormat.of().formatHex(out.toByteArray());
+    }
+
+    private static JsonArray randomArray(Random random) {
+        String[] values = new String[random.nextInt(12)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = String.valueOf((char) ('a' + random.nextInt(5)));
+        }
+        return array(values);
+    }
+
+    private static JsonArray array(String... values) {
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (String value : values) {
+            builder.add(value);
+        }
+        return builder.build();
+    }
+
+    private static JsonArray assertPatch(JsonArray source, JsonArray target, int ops) {
+        return assertPatch(new JsonT.JsonDiff(), source, target, ops);
+    }
+
+    /**
+     * Check the patch turns source into target and, unless ops is negative, its size.
+     */
+    private static JsonArray assertPatch(JsonT.JsonDiff diff, JsonStructure source, JsonStructure target, int ops) {
+        JsonArray patch = diff.diff(source, target);
+        assertEquals(target, Json.createPatch(patch).apply(source), patch.toString());
+        if (ops >= 0) {
+            assertEquals(ops, patch.size(), patch.toString());
+        }
+        return patch;
+    }
 }
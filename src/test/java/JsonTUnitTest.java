@@ -1,13 +1,35 @@
 
 import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonNumber;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonReader;
+import jakarta.json.JsonStructure;
+import jakarta.json.JsonValue;
+import jakarta.json.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import javax.xml.transform.TransformerException;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Assertions;
 import java.io.FileInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
 
 /**
  *
@@ -30,4 +52,684 @@ public class JsonTUnitTest {
             Assertions.assertEquals(9, results.size());
         }
     }
+
+    @Test
+    public void testTransformLines() throws IOException, TransformerException {
+        Path template = Files.createTempFile("template", ".js");
+        Files.writeString(template, "$ = { id: _.id, twice: _.id * 2 }");
+        Path input = Files.createTempFile("input", ".ndjson");
+        Files.writeString(input, "{\"id\":1}\n\n{not json}\n{\"id\":3}\n");
+        Path output = Files.createTempFile("output", ".ndjson");
+
+        TransformerException failure = Assertions.assertThrows(
+            TransformerException.class,
+            () -> JsonT.main(new String[]{"--lines", template.toString(), input.toString(), output.toString()})
+        );
+        Assertions.assertEquals("1 record failed", failure.getMessage());
+
+        List<String> lines = Files.readAllLines(output);
+        Assertions.assertEquals(2, lines.size());
+        try (JsonReader reader = Json.createReader(new java.io.StringReader(lines.get(1)))) {
+            JsonObject jsonObject = reader.readObject();
+            Assertions.assertEquals(3, jsonObject.getInt("id"));
+            Assertions.assertEquals(6, jsonObject.getInt("twice"));
+        }
+    }
+
+    @Test
+    public void testTemplateEngineConcurrent() throws Exception {
+        JsonStructure input;
+        try (JsonReader reader = Json.createReader(ClassLoader.getSystemResourceAsStream("ALL_FINES.json"))) {
+            input = reader.read();
+        }
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(2)) {
+            JsonT.CompiledTemplate template = engine.compile(Path.of("template.js"));
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<JsonValue>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    futures.add(executor.submit(() -> template.transform(input)));
+                }
+                for (Future<JsonValue> future : futures) {
+                    Assertions.assertEquals(9, future.get().asJsonObject().getJsonArray("results").size());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testTemplateEngineHostAccess() throws Exception {
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonT.CompiledTemplate lookup = engine.compile("lookup", "$ = Java.type('java.lang.System').getenv()");
+            TransformerException e = Assertions.assertThrows(TransformerException.class, () -> lookup.transform(JsonValue.NULL));
+            Assertions.assertTrue(e.getMessage().contains("Java is not defined"), e.getMessage());
+
+            // the input and emit stay usable without host access, and so do typed arrays over host buffers
+            JsonT.CompiledTemplate emitting = engine.compile("emitting", "emit(_.ids.length); emit(typeof Java)");
+            Assertions.assertEquals(
+                Json.createArrayBuilder().add(2048).add("undefined").build(),
+                emitting.transform(new JsonT.LazyJson(("{\"ids\":[" + "1,".repeat(2047) + "1]}").getBytes(StandardCharsets.UTF_8)).typedArrays(1024))
+            );
+        }
+    }
+
+    @Test
+    public void testTemplateEngineOperate() throws Exception {
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonStructure orig = Json.createObjectBuilder().add("a", 1).add("b", 2).build();
+            JsonStructure target = Json.createObjectBuilder().add("a", 1).add("c", 3).build();
+            JsonValue patch = engine.operate(JsonT.Operation.PATCH, orig, target);
+            Assertions.assertEquals(target, engine.operate(JsonT.Operation.APPLY, patch.asJsonArray(), orig));
+        }
+    }
+
+    @Test
+    public void testTransformFiles() throws IOException, TransformerException {
+        Path template = Files.createTempFile("template", ".js");
+        Files.writeString(template, "$ = { id: _.id, twice: _.id * 2 }");
+        Path inputDir = Files.createTempDirectory("inputs");
+        for (int i = 0; i < 5; i++) {
+            Files.writeString(inputDir.resolve("in" + i + ".json"), "{\"id\":" + i + "}");
+        }
+        Files.writeString(inputDir.resolve("broken.json"), "{not json}");
+        Path outputDir = Files.createTempDirectory("outputs");
+
+        TransformerException failure = Assertions.assertThrows(
+            TransformerException.class,
+            () -> JsonT.main(new String[]{
+                "--out-dir=" + outputDir, "--parallelism=2", template.toString(), inputDir.toString()
+            })
+        );
+        Assertions.assertEquals("1 of 6 files failed", failure.getMessage());
+
+        for (int i = 0; i < 5; i++) {
+            try (JsonReader reader = Json.createReader(Files.newBufferedReader(outputDir.resolve("in" + i + ".json")))) {
+                Assertions.assertEquals(i * 2, reader.readObject().getInt("twice"));
+            }
+        }
+        Assertions.assertFalse(Files.exists(outputDir.resolve("broken.json")));
+    }
+
+    @Test
+    public void testTransformLazy() throws Exception {
+        Path fines = Path.of(ClassLoader.getSystemResource("ALL_FINES.json").toURI());
+        String document = "{\"s\":\"a\\\"b\\\\c\\u00e9\\n\u00fc\",\"n\":[-1,2.5e3,9007199254740993,0],"
+            + "\"o\":{\"t\":true,\"f\":false,\"z\":null,\"e\":{},\"a\":[]}}";
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonT.CompiledTemplate template = engine.compile(Path.of("template.js"));
+            Assertions.assertEquals(template.transform(fines), template.transform(JsonT.LazyJson.of(fines)));
+
+            JsonT.CompiledTemplate identity = engine.compile("identity", "$ = _");
+            JsonStructure expected = Json.createReader(new java.io.StringReader(document)).read();
+            Assertions.assertEquals(
+                identity.transform(expected),
+                identity.transform(new JsonT.LazyJson(document.getBytes(java.nio.charset.StandardCharsets.UTF_8)))
+            );
+        }
+
+        Path template = Files.createTempFile("template", ".js");
+        Files.writeString(template, "_.a.push(4); _.a.unshift(0); _.a.splice(1, 1); _.b.length = 1; _.o.x = 1; delete _.o.y; $ = _");
+        Path input = Files.createTempFile("input", ".json");
+        Files.writeString(input, "{\"a\":[1,2,3],\"b\":[{\"n\":1},{\"n\":2}],\"o\":{\"y\":2}}");
+        for (String lazy : List.of("--lazy", "--typed-arrays")) {
+            Path output = Files.createTempFile("output", ".json");
+            JsonT.main(new String[]{lazy, template.toString(), input.toString(), output.toString()});
+            try (JsonReader reader = Json.createReader(Files.newBufferedReader(output))) {
+                Assertions.assertEquals(
+                    Json.createReader(new java.io.StringReader("{\"a\":[0,2,3,4],\"b\":[{\"n\":1}],\"o\":{\"x\":1}}")).read(),
+                    reader.read(),
+                    lazy
+                );
+            }
+        }
+    }
+
+    @Test
+    public void testTypedArrays() throws Exception {
+        StringBuilder ints = new StringBuilder(), doubles = new StringBuilder(), mixed = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            String separator = i > 0 ? ", " : "";
+            ints.append(separator).append(i - 1000);
+            doubles.append(separator).append(i == 1 ? "2147483648" : i == 2 ? "-0" : i + ".5");
+            mixed.append(separator).append(i == 1999 ? "null" : i);
+        }
+        String document = "{\"ints\": [" + ints + "], \"doubles\": [" + doubles + "], \"mixed\": [" + mixed
+            + "], \"small\": [1, 2]}";
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonT.CompiledTemplate types = engine.compile(
+                "types",
+                "$ = { types: ['ints', 'doubles', 'mixed', 'small'].map(k => Object.prototype.toString.call(_[k])), "
+                    + "sum: _.ints.reduce((s, n) => s + n, 0), negativeZero: Object.is(_.doubles[2], -0), "
+                    + "doubled: _.doubles.subarray(0, 2).map(n => n * 2), ints: _.ints.subarray(0, 3) }"
+            );
+            JsonObject result = types
+                .transform(new JsonT.LazyJson(document.getBytes(StandardCharsets.UTF_8)).typedArrays(1000))
+                .asJsonObject();
+            Assertions.assertEquals(
+                List.of("[object Int32Array]", "[object Float64Array]", "[object Array]", "[object Array]"),
+                result.getJsonArray("types").getValuesAs(jakarta.json.JsonString::getString)
+            );
+            Assertions.assertEquals(-1000, result.getInt("sum"));
+            Assertions.assertTrue(result.getBoolean("negativeZero"));
+            Assertions.assertEquals(Json.createReader(new java.io.StringReader("[1, 4294967296]")).readArray(), result.get("doubled"));
+            Assertions.assertEquals(Json.createReader(new java.io.StringReader("[-1000, -999, -998]")).readArray(), result.get("ints"));
+
+            // a numeric root is bound as a typed array too, and written back as an array
+            JsonT.CompiledTemplate identity = engine.compile("identity", "$ = _");
+            Assertions.assertEquals(
+                Json.createReader(new java.io.StringReader("[1.5, 2, 3]")).readArray(),
+                identity.transform(new JsonT.LazyJson("[1.5, 2, 3]".getBytes(StandardCharsets.UTF_8)).typedArrays(1))
+            );
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        String document = "{\"s\":\"a\\\"{,:}\\\\\",\"n\":[-1,2.50,123456789012345678901234],\"o\":{},\"e\":[[]]}";
+        java.io.StringWriter pretty = new java.io.StringWriter();
+        try (
+            jakarta.json.stream.JsonParser parser = Json.createParser(new java.io.StringReader(document));
+            jakarta.json.stream.JsonGenerator generator = Json.createGenerator(new JsonT.IndentingWriter(pretty, 2))
+        ) {
+            JsonT.copy(parser, generator);
+        }
+        Assertions.assertEquals(
+            String.join("\n",
+                "{",
+                "  \"s\": \"a\\\"{,:}\\\\\",",
+                "  \"n\": [",
+                "    -1,",
+                "    2.50,",
+                "    123456789012345678901234",
+                "  ],",
+                "  \"o\": {},",
+                "  \"e\": [",
+                "    []",
+                "  ]",
+                "}"
+            ),
+            pretty.toString()
+        );
+
+        // identity mode copies without a template, re-indented and transcoded from the input charset
+        Path input = Files.createTempFile("input", ".json");
+        Files.writeString(input, "{\"name\":\"M\u00fcller\",\"ids\":[1,2]}", StandardCharsets.ISO_8859_1);
+        Path output = Files.createTempFile("output", ".json");
+        JsonT.main(new String[]{".", input.toString(), output.toString(), "ISO-8859-1", "0"});
+        Assertions.assertEquals("{\"name\":\"M\u00fcller\",\"ids\":[1,2]}", Files.readString(output));
+    }
+
+    @Test
+    public void testChunkedJsonWriter() throws Exception {
+        JsonArrayBuilder elements = Json.createArrayBuilder();
+        for (int i = 0; i < 50; i++) {
+            elements.add(Json.createObjectBuilder()
+                .add("id", i)
+                .add("name", "née 😀 \"" + i + "\"\t\u0001")
+                .add("tags", Json.createArrayBuilder().add(i * 0.5).addNull())
+                .add("empty", Json.createObjectBuilder()));
+        }
+        JsonArray array = elements.build();
+        JsonObject nested = Json.createObjectBuilder().add("hits", array).add("more", array).build();
+
+        for (JsonStructure value : List.of(array, nested)) {
+            for (int indent : new int[]{0, 2}) {
+                StringWriter expected = new StringWriter();
+                try (JsonWriter writer = Json.createWriter(
+                    indent > 0 ? new JsonT.IndentingWriter(expected, indent) : expected
+                )) {
+                    writer.write(value);
+                }
+
+                // chunks of 3 elements encoded on 4 workers are stitched back in order
+                Path output = Files.createTempFile("chunked", ".json");
+                try (JsonWriter writer = new JsonT.ChunkedJsonWriter(
+                    new JsonT.Utf8Writer(FileChannel.open(output, StandardOpenOption.WRITE)),
+                    indent, 4, 3
+                )) {
+                    writer.write(value);
+                }
+                Assertions.assertEquals(expected.toString(), Files.readString(output));
+            }
+        }
+
+        // the same bytes from Parsson and from the chunked encoder, for escapes Parsson leaves alone too
+        JsonArrayBuilder escapes = Json.createArrayBuilder();
+        for (int i = 0; i < 40; i++) {
+            escapes.add("\u0000\u001f\u007f \b\f\n\r\t \u2028\u2029 \ud800 x\udfff " + "\"\\/".repeat(i % 3) + i);
+        }
+        JsonStructure fines = Json.createReader(ClassLoader.getSystemResourceAsStream("ALL_FINES.json")).read();
+        for (JsonStructure value : List.of(fines, escapes.build())) {
+            for (int indent : new int[]{0, 2}) {
+                ByteArrayOutputStream parsson = new ByteArrayOutputStream();
+                try (JsonWriter writer = new JsonT.ChunkedJsonWriter(new JsonT.Utf8Writer(parsson), indent, 1)) {
+                    writer.write(value);
+                }
+                ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+                // chunks of 2, so the 9 hits of ALL_FINES are past the 4 chunk threshold
+                try (JsonWriter writer = new JsonT.ChunkedJsonWriter(new JsonT.Utf8Writer(chunked), indent, 4, 2)) {
+                    writer.write(value);
+                }
+                Assertions.assertArrayEquals(parsson.toByteArray(), chunked.toByteArray(), "spaces " + indent);
+            }
+        }
+    }
+
+    @Test
+    public void testJsonBytesAcrossChunks() throws IOException {
+        // one more element than fits in a 16MB read chunk, so values straddle the chunk boundary
+        StringBuilder document = new StringBuilder("[");
+        String element = "\"\u00e9l\u00e9ment-0123456789\"";
+        while (document.length() < (1 << 24) + 64) {
+            document.append(element).append(',');
+        }
+        document.setCharAt(document.length() - 1, ']');
+        byte[] bytes = document.toString().getBytes(StandardCharsets.UTF_8);
+
+        JsonT.JsonBytes chunked = JsonT.JsonBytes.read(new ByteArrayInputStream(bytes));
+        Assertions.assertEquals(bytes.length, chunked.length());
+        int from = (1 << 24) - 7;
+        Assertions.assertEquals(
+            new String(bytes, from, 21, StandardCharsets.UTF_8),
+            chunked.decode(from, from + 21)
+        );
+        try (JsonReader reader = Json.createReader(chunked.newInputStream())) {
+            Assertions.assertEquals(Json.createReader(new StringReader(document.toString())).read(), reader.read());
+        }
+    }
+
+    @Test
+    public void testTransformStream() throws Exception {
+        JsonStructure input = Json.createReader(new java.io.StringReader("{\"ids\":[1,2,3]}")).read();
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonT.CompiledTemplate generator = engine.compile(
+                "generator",
+                "$ = (function* () { for (const id of _.ids) yield { id: id } })()"
+            );
+            List<JsonValue> elements = new ArrayList<>();
+            Assertions.assertEquals(3, generator.transform(input, elements::add));
+            Assertions.assertEquals(2, elements.get(1).asJsonObject().getInt("id"));
+
+            JsonT.CompiledTemplate emitter = engine.compile("emitter", "for (const id of _.ids) emit(id * 10)");
+            Assertions.assertEquals(Json.createArrayBuilder().add(10).add(20).add(30).build(), emitter.transform(input));
+        }
+
+        Path template = Files.createTempFile("template", ".js");
+        Files.writeString(template, "for (const id of _.ids) emit({ id: id })");
+        Path inputFile = Files.createTempFile("input", ".json");
+        Files.writeString(inputFile, input.toString());
+        Path output = Files.createTempFile("output", ".ndjson");
+        JsonT.main(new String[]{"--stream=ndjson", template.toString(), inputFile.toString(), output.toString()});
+        Assertions.assertEquals(List.of("{\"id\":1}", "{\"id\":2}", "{\"id\":3}"), Files.readAllLines(output));
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        Path extract = Files.createTempFile("extract", ".js");
+        Files.writeString(extract, "$ = { ids: _.items.map(i => i.id) }");
+        Path total = Files.createTempFile("total", ".js");
+        Files.writeString(total, "$ = _.ids.reduce((a, b) => a + b, 0)");
+        Path patch = Files.createTempFile("patch", ".json");
+        Files.writeString(patch, "[{\"op\":\"add\",\"path\":\"/ids/-\",\"value\":100}]");
+        String spec = Json.createArrayBuilder()
+            .add(extract.toString())
+            .add(Json.createArrayBuilder().add("apply").add(patch.toString()))
+            .add(total.toString())
+            .build()
+            .toString();
+
+        JsonStructure input = Json.createReader(new java.io.StringReader("{\"items\":[{\"id\":1},{\"id\":2}]}")).read();
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonT.Pipeline pipeline = JsonT.Pipeline.parse(engine, Json.createReader(new java.io.StringReader(spec)).readArray());
+            Assertions.assertEquals(3, pipeline.size());
+            Assertions.assertEquals(103, ((jakarta.json.JsonNumber) pipeline.apply(input)).intValue());
+            Assertions.assertSame(engine.template(extract), engine.template(extract));
+
+            JsonT.Pipeline failing = JsonT.Pipeline.parse(engine, Json.createReader(new java.io.StringReader(
+                "[\"" + extract + "\", \"" + total + "\", [\"apply\", \"" + patch + "\"]]"
+            )).readArray());
+            TransformerException e = Assertions.assertThrows(TransformerException.class, () -> failing.apply(input));
+            Assertions.assertTrue(e.getMessage().startsWith("stage 3 (apply): "), e.getMessage());
+        }
+
+        Path inputFile = Files.createTempFile("input", ".json");
+        Files.writeString(inputFile, input.toString());
+        Path output = Files.createTempFile("output", ".json");
+        JsonT.main(new String[]{"--pipeline=" + spec, inputFile.toString(), output.toString()});
+        Assertions.assertEquals("103", Files.readString(output).strip());
+    }
+
+    @Test
+    public void testPipelineBindsValues() throws Exception {
+        Path same = Files.createTempFile("same", ".js");
+        Files.writeString(same, "$ = _");
+        Path wrap = Files.createTempFile("wrap", ".js");
+        Files.writeString(wrap, "$ = { items: _.items, count: _.items.length, skipped: undefined }");
+        Path push = Files.createTempFile("push", ".js");
+        Files.writeString(push, "_.items.push({ id: 3, f() {} }); _.items[0].id = 0.5; $ = _");
+        String spec = "[\"" + same + "\", \"" + wrap + "\"]";
+
+        JsonObject input = Json.createReader(new java.io.StringReader("{\"items\":[{\"id\":1},{\"id\":2}]}")).readObject();
+        java.io.ByteArrayOutputStream report = new java.io.ByteArrayOutputStream();
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            JsonT.Stats.enable();
+            JsonT.Pipeline pipeline = JsonT.Pipeline.parse(engine, Json.createReader(new java.io.StringReader(spec)).readArray());
+            JsonObject output = pipeline.apply(input).asJsonObject();
+            JsonT.Stats.report(new java.io.PrintStream(report, true), true);
+
+            Assertions.assertSame(input, engine.template(same).transform(input));
+            Assertions.assertSame(input.get("items"), output.get("items"));
+            Assertions.assertEquals(Json.createValue(2), output.get("count"));
+            Assertions.assertFalse(output.containsKey("skipped"));
+            Assertions.assertEquals(
+                "{\"items\":[{\"id\":0.5},{\"id\":2},{\"id\":3}]}",
+                engine.template(push).transform(input).toString()
+            );
+            Assertions.assertEquals("{\"items\":[{\"id\":1},{\"id\":2}]}", input.toString());
+        } finally {
+            JsonT.Stats.reset();
+        }
+
+        JsonObject counters = Json.createReader(new java.io.StringReader(report.toString())).readObject().getJsonObject("counters");
+        Assertions.assertFalse(counters.containsKey("jsonText"), counters.toString());
+    }
+
+    @Test
+    public void testEmbeddedTemplates() throws Exception {
+        Path template = Files.createTempFile("embedded", ".js");
+        Files.writeString(template, "$ = _");
+        java.util.Map<String, String> templates = JsonT.EmbeddedTemplates.load(" " + template + ",");
+        Assertions.assertEquals("$ = _", templates.get(template.toString()));
+        Assertions.assertEquals("$ = _", templates.get(template.getFileName().toString()));
+        Assertions.assertThrows(java.io.UncheckedIOException.class, () -> JsonT.EmbeddedTemplates.load("missing.js"));
+
+        // only an explicit @name selects the embedded copy, so files of the same name are never shadowed
+        Assertions.assertNull(JsonT.EmbeddedTemplates.get(templates, template.toString()));
+        Assertions.assertNull(JsonT.EmbeddedTemplates.get(templates, template.getFileName().toString()));
+        Assertions.assertEquals("$ = _", JsonT.EmbeddedTemplates.get(templates, "@" + template));
+        Assertions.assertEquals("$ = _", JsonT.EmbeddedTemplates.get(templates, "@" + template.getFileName()));
+        Assertions.assertNull(JsonT.EmbeddedTemplates.get(templates, "@other.js"));
+
+        // JSON Lines runs on a compiled template too, as it does for an embedded one
+        java.io.StringWriter out = new java.io.StringWriter();
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1)) {
+            long failed = JsonT.transformLines(
+                engine.compile("twice", "$ = { twice: _.n * 2 }"),
+                new java.io.BufferedReader(new java.io.StringReader("{\"n\":1}\n{bad\n\n{\"n\":2}\n")),
+                out,
+                System.err
+            );
+            Assertions.assertEquals(1, failed);
+        }
+        Assertions.assertEquals("{\"twice\":2}\n{\"twice\":4}\n", out.toString());
+    }
+
+    @Test
+    public void testCompilationCache() throws Exception {
+        Assertions.assertEquals(3L << 20, JsonT.CompilationCache.parseSize("3m"));
+        Assertions.assertEquals(1024, JsonT.CompilationCache.parseSize("1024"));
+
+        Path dir = Files.createTempDirectory("cache");
+        JsonT.CompilationCache cache = new JsonT.CompilationCache(dir, 250);
+        Assertions.assertNotEquals(cache.entry("$ = 1"), cache.entry("$ = 2"));
+        for (int i = 0; i < 4; i++) {
+            Path entry = cache.entry("$ = " + i);
+            Files.write(entry, new byte[100]);
+            Files.setLastModifiedTime(entry, java.nio.file.attribute.FileTime.fromMillis(1_000_000L * (i + 1)));
+        }
+        Assertions.assertEquals(2, cache.evict());
+        Assertions.assertFalse(Files.exists(cache.entry("$ = 0")));
+        Assertions.assertFalse(Files.exists(cache.entry("$ = 1")));
+        Assertions.assertTrue(Files.exists(cache.entry("$ = 3")));
+
+        try (JsonT.TemplateEngine engine = cache.engine(1, "$ = _")) {
+            Assertions.assertEquals(JsonValue.TRUE, engine.compile("cached", "$ = _").transform(JsonValue.TRUE));
+            Assertions.assertEquals(engine.isCached(), cache.isSupported());
+        }
+
+        // only used when asked for: an entry, or the marker for a runtime that cannot store one
+        Path template = Files.createTempFile("template", ".js");
+        Files.writeString(template, "$ = { id: _.id }");
+        Path input = Files.createTempFile("input", ".json");
+        Files.writeString(input, "{\"id\":1}");
+        Path output = Files.createTempFile("output", ".json");
+        Path runs = dir.resolve("runs");
+        JsonT.main(new String[]{"--compile-cache=" + runs, template.toString(), input.toString(), output.toString()});
+        Assertions.assertEquals("{\"id\":1}", Files.readString(output).replaceAll("\\s", ""));
+        try (java.util.stream.Stream<Path> files = Files.list(runs)) {
+            Assertions.assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        Path template = Files.createTempFile("template", ".js");
+        Files.writeString(template, "$ = { id: _.id }");
+        Path input = Files.createTempFile("input", ".ndjson");
+        String lines = "{\"id\":1,\"s\":\"\u00e9\u20ac\ud83d\ude00\"}\n{\"id\":2}\n";
+        Files.writeString(input, lines);
+        Path output = Files.createTempFile("output", ".ndjson");
+        Path recording = Files.createTempFile("stats", ".jfr");
+
+        java.io.ByteArrayOutputStream report = new java.io.ByteArrayOutputStream();
+        try (jdk.jfr.Recording jfr = new jdk.jfr.Recording()) {
+            jfr.enable("jsont.Phase");
+            jfr.start();
+            JsonT.Stats.enable();
+            JsonT.main(new String[]{"--lines", template.toString(), input.toString(), output.toString()});
+            JsonT.Stats.report(new java.io.PrintStream(report, true), true);
+            jfr.stop();
+            jfr.dump(recording);
+        } finally {
+            JsonT.Stats.reset();
+        }
+
+        JsonObject stats = Json.createReader(new java.io.StringReader(report.toString())).readObject();
+        Assertions.assertEquals(2, stats.getJsonObject("phases").getJsonObject("transform").getInt("count"));
+        Assertions.assertEquals(2, stats.getJsonObject("counters").getInt("records"));
+        Assertions.assertEquals(lines.getBytes(StandardCharsets.UTF_8).length, stats.getJsonObject("counters").getInt("inputBytes"));
+        Assertions.assertTrue(stats.getJsonObject("counters").getInt("outputBytes") > 0);
+
+        List<Long> records = new ArrayList<>();
+        for (jdk.jfr.consumer.RecordedEvent event : jdk.jfr.consumer.RecordingFile.readAllEvents(recording)) {
+            if ("transform".equals(event.getString("phase"))) {
+                records.add(event.getLong("record"));
+            }
+        }
+        Assertions.assertEquals(List.of(1L, 2L), records);
+
+        // a template run is timed on the TrAX path it takes without --stats, writing the same output
+        Path plain = Files.createTempFile("output", ".json"), timed = Files.createTempFile("output", ".json");
+        JsonT.main(new String[]{"template.js", "ALL_FINES.json", plain.toString()});
+        report.reset();
+        try {
+            JsonT.Stats.enable();
+            JsonT.main(new String[]{"template.js", "ALL_FINES.json", timed.toString()});
+            JsonT.Stats.report(new java.io.PrintStream(report, true), true);
+        } finally {
+            JsonT.Stats.reset();
+        }
+        Assertions.assertEquals(Files.readString(plain), Files.readString(timed));
+        JsonObject phases = Json.createReader(new java.io.StringReader(report.toString())).readObject().getJsonObject("phases");
+        Assertions.assertEquals(Set.of("compile", "transform", "write"), phases.keySet());
+    }
+
+    @Test
+    public void testMapReduce() throws Exception {
+        StringBuilder json = new StringBuilder("{\"took\": 5, \"hits\": {\"hits\": [");
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++) {
+            json.append(i > 1 ? ",\n  " : "").append("{\"n\": ").append(i).append(", \"s\": \"a,]\\\"b\"}");
+            expected.add(i * 2);
+        }
+        JsonT.LazyJson input = new JsonT.LazyJson(json.append("]}}").toString().getBytes(StandardCharsets.UTF_8));
+
+        try (JsonT.TemplateEngine engine = new JsonT.TemplateEngine(4)) {
+            JsonT.MapReduce job = new JsonT.MapReduce(engine.compile("map", "$ = _.map(h => h.n * 2)"), "/hits/hits")
+                .chunkSize(512);
+            Assertions.assertEquals(expected, job.apply(input, 4).asJsonArray().getValuesAs(JsonNumber::intValue));
+
+            JsonT.MapReduce sum = new JsonT.MapReduce(engine.compile("sum", "$ = _.reduce((s, h) => s + h.n, 0)"), "/hits/hits")
+                .reduce(engine.compile("total", "$ = _.reduce((s, n) => s + n, 0)"))
+                .chunkSize(512)
+                .unordered();
+            Assertions.assertEquals(500500, ((JsonNumber) sum.apply(input, 4)).intValue());
+            JsonT.CompiledTemplate count = engine.compile("count", "$ = _.length");
+            Assertions.assertTrue(((JsonNumber) sum.reduce(count).apply(input, 4)).intValue() > 50);
+            Assertions.assertEquals(1, ((JsonNumber) sum.reduce(count).chunkSize(1 << 20).apply(input, 4)).intValue());
+
+            JsonT.MapReduce notArray = new JsonT.MapReduce(engine.compile("map", "$ = _"), "/took");
+            Assertions.assertThrows(jakarta.json.JsonException.class, () -> notArray.apply(input, 4));
+        }
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        Path dir = Files.createTempDirectory("results");
+        Path input = Files.createTempFile("input", ".json");
+        Files.writeString(input, "{\"id\":1}");
+        Path output = Files.createTempFile("output", ".json");
+        JsonT.ResultCache cache = new JsonT.ResultCache(dir, 1 << 20);
+        List<String> files = List.of("template.js", input.toString());
+
+        String key = cache.key(Map.of("lazy", ""), List.of("template"), files);
+        Assertions.assertEquals(key, cache.key(Map.of("lazy", "", "stats", ""), List.of("template"), files));
+        Assertions.assertNotEquals(key, cache.key(Map.of(), List.of("template"), files));
+        Assertions.assertNull(cache.key(Map.of(), List.of("template"), List.of("template.js", JsonT.STDIN)));
+
+        int[] runs = { 0 };
+        JsonT.ResultCache.Job job = out -> {
+            runs[0]++;
+            Files.writeString(Path.of(out), "{\"run\":" + runs[0] + "}");
+        };
+        Assertions.assertFalse(cache.run(key, output.toString(), job));
+        Assertions.assertTrue(cache.run(key, output.toString(), job));
+        Assertions.assertEquals(1, runs[0]);
+        Assertions.assertEquals("{\"run\":1}", Files.readString(output));
+        Assertions.assertArrayEquals(new long[] { 1, 1 }, cache.counters());
+
+        Files.writeString(input, "{\"id\":2}");
+        String changed = cache.key(Map.of("lazy", ""), List.of("template"), files);
+        Assertions.assertNotEquals(key, changed);
+        JsonT.ResultCache small = new JsonT.ResultCache(dir, 12);
+        Assertions.assertFalse(small.run(changed, output.toString(), job));
+        Assertions.assertEquals("{\"run\":2}", Files.readString(output));
+        Assertions.assertFalse(small.run(key, output.toString(), job));
+        Assertions.assertArrayEquals(new long[] { 1, 3 }, cache.counters());
+
+        // the output format chosen by extension is part of the key, so a CBOR result is not reused as JSON
+        Path template = Files.writeString(Files.createTempFile("template", ".js"), "$ = { id: _.id }");
+        Path cbor = Files.createTempFile("output", ".cbor"), json = Files.createTempFile("output", ".json");
+        String option = "--result-cache=" + Files.createTempDirectory("results");
+        JsonT.main(new String[]{option, template.toString(), input.toString(), cbor.toString()});
+        JsonT.main(new String[]{option, template.toString(), input.toString(), json.toString()});
+        Assertions.assertEquals(0xa1, Files.readAllBytes(cbor)[0] & 0xff);
+        Assertions.assertEquals(2, JsonT.readJson(json).asJsonObject().getInt("id"));
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        Path dir = Files.createTempDirectory("watch");
+        Path template = dir.resolve("template.js");
+        Files.writeString(template, "$ = { id: _.id }");
+        Path inputs = Files.createDirectories(dir.resolve("in"));
+        Files.writeString(inputs.resolve("a.json"), "{\"id\":1}");
+        Files.writeString(inputs.resolve("b.json"), "{\"id\":2}");
+        Path outputs = inputs.resolve("out");
+
+        List<Path> runs = new ArrayList<>();
+        try (
+            JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1);
+            JsonT.Watcher watcher = new JsonT.Watcher(engine, template, List.of(inputs.toString()), (compiled, changed, all) -> {
+                runs.addAll(changed);
+                Map<Path, Path> affected = JsonT.resolveBatchOutputs(all, outputs);
+                affected.keySet().retainAll(changed);
+                JsonT.transformFiles(compiled, affected, 1, StandardCharsets.UTF_8, "0", System.err);
+            }).ignoring(outputs)
+        ) {
+            Assertions.assertEquals(2, watcher.runAll());
+            Assertions.assertEquals(1, JsonT.readJson(outputs.resolve("a.json")).asJsonObject().getInt("id"));
+
+            Files.writeString(inputs.resolve("a.json"), "{\"id\":3}");
+            Assertions.assertEquals(1, watcher.poll(10, java.util.concurrent.TimeUnit.SECONDS));
+            Assertions.assertEquals(3, JsonT.readJson(outputs.resolve("a.json")).asJsonObject().getInt("id"));
+
+            Files.writeString(inputs.resolve("c.json"), "{\"id\":4}");
+            Assertions.assertEquals(1, watcher.poll(10, java.util.concurrent.TimeUnit.SECONDS));
+            Assertions.assertEquals(4, JsonT.readJson(outputs.resolve("c.json")).asJsonObject().getInt("id"));
+
+            Files.writeString(template, "$ = { id: _.id * 10 }");
+            Assertions.assertEquals(3, watcher.poll(10, java.util.concurrent.TimeUnit.SECONDS));
+            Assertions.assertEquals(20, JsonT.readJson(outputs.resolve("b.json")).asJsonObject().getInt("id"));
+            Assertions.assertEquals(7, runs.size());
+        }
+    }
+
+    @Test
+    public void testServe() throws Exception {
+        Path templates = Files.createTempDirectory("serve");
+        Files.writeString(templates.resolve("ids.js"), "$ = { ids: _.items.map(i => i.id) }");
+        Files.createDirectories(templates.resolve("slow"));
+        Files.writeString(templates.resolve("slow/spin.js"), "const end = Date.now() + 1000; while (Date.now() < end) {} $ = 1");
+
+        java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
+        try (
+            JsonT.TemplateEngine engine = new JsonT.TemplateEngine(1);
+            JsonT.Server server = new JsonT.Server(engine, templates)
+                .maxRequestBytes(64)
+                .maxWait(0)
+                .start(new java.net.InetSocketAddress("localhost", 0))
+        ) {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/";
+            java.util.function.BiFunction<String, String, java.net.http.HttpRequest> post = (path, body) ->
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + path))
+                    .POST(java.net.http.HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            java.net.http.HttpResponse.BodyHandler<String> text = java.net.http.HttpResponse.BodyHandlers.ofString();
+
+            Assertions.assertEquals(List.of("ids", "slow/spin"), server.names());
+            java.net.http.HttpResponse<String> response = client.send(post.apply("transform/ids", "{\"items\":[{\"id\":1},{\"id\":2}]}"), text);
+            Assertions.assertEquals(200, response.statusCode());
+            Assertions.assertEquals("{\"ids\":[1,2]}", response.body());
+            response = client.send(post.apply("patch", "[{\"a\":1},{\"a\":2}]"), text);
+            Assertions.assertEquals("[{\"op\":\"replace\",\"path\":\"/a\",\"value\":2}]", response.body());
+
+            Assertions.assertEquals(400, client.send(post.apply("transform/ids", "{\"items\""), text).statusCode());
+            Assertions.assertEquals(400, client.send(post.apply("merge", "[{}]"), text).statusCode());
+            Assertions.assertEquals(404, client.send(post.apply("transform/missing", "{}"), text).statusCode());
+            Assertions.assertEquals(413, client.send(post.apply("transform/ids", "[" + "0,".repeat(40) + "0]"), text).statusCode());
+            Assertions.assertEquals(422, client.send(post.apply("transform/ids", "{}"), text).statusCode());
+
+            // an edited template is compiled again on its next request
+            Path ids = templates.resolve("ids.js");
+            Files.writeString(ids, "$ = { count: _.items.length }");
+            Files.setLastModifiedTime(ids, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            response = client.send(post.apply("transform/ids", "{\"items\":[{\"id\":1},{\"id\":2}]}"), text);
+            Assertions.assertEquals("{\"count\":2}", response.body());
+
+            // with the only context busy, a request that cannot wait is refused
+            java.util.concurrent.CompletableFuture<java.net.http.HttpResponse<String>> slow = client.sendAsync(post.apply("transform/slow/spin", "{}"), text);
+            java.net.http.HttpRequest metrics = java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "metrics")).build();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (JsonT.readJson(new java.io.StringReader(client.send(metrics, text).body())).asJsonObject().getInt("running") == 0) {
+                Assertions.assertTrue(System.currentTimeMillis() < deadline, "slow request never started");
+                Thread.sleep(10);
+            }
+            response = client.send(post.apply("transform/ids", "{\"items\":[]}"), text);
+            Assertions.assertEquals(503, response.statusCode());
+            Assertions.assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+            Assertions.assertEquals("1", slow.get().body());
+
+            JsonObject endpoints = JsonT.readJson(new java.io.StringReader(client.send(metrics, text).body()))
+                .asJsonObject()
+                .getJsonObject("endpoints");
+            JsonObject transform = endpoints.getJsonObject("transform/ids");
+            Assertions.assertEquals(6, transform.getInt("count"));
+            Assertions.assertEquals(4, transform.getInt("errors"));
+            Assertions.assertTrue(transform.getJsonNumber("p50").doubleValue() <= transform.getJsonNumber("p99").doubleValue());
+            Assertions.assertEquals(1, endpoints.getJsonObject("transform/slow/spin").getInt("count"));
+        }
+    }
 }
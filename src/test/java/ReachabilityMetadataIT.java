@@ -2,7 +2,7 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 import jakarta.json.Json;
-import jakarta.json.JsonPatch;
+import jakarta.json.JsonArray;
 import jakarta.json.JsonStructure;
 import java.io.FileReader;
 import java.io.IOException;
@@ -24,12 +24,11 @@ public class ReachabilityMetadataIT {
         JsonStructure orig = Json.createReader(ClassLoader.getSystemResourceAsStream("META-INF" + DATA)).readObject();
         JsonStructure gen = Json.createReader(new FileReader("target" + DATA)).readObject();
 
-        JsonPatch diff = Json.createDiff(orig, gen);
+        JsonArray diff = JsonT.JsonDiff.patch(orig, gen);
 
         assertNotNull(diff);
-        assertNotNull(diff.toJsonArray());
-        assertFalse(diff.toJsonArray().isEmpty());
-        assertNotNull(diff.toJsonArray().getFirst());
+        assertFalse(diff.isEmpty());
+        assertNotNull(diff.getFirst());
         System.out.println(diff.toString());
     }
 }